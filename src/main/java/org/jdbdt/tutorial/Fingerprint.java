@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Order-independent fingerprint of a set of users.
+ * 
+ * <p>
+ * A fingerprint combines a 64-bit hash per user using commutative 
+ * arithmetic (sum and exclusive-or), along with the number of users, 
+ * hence it does not depend on the order in which users are read and can 
+ * be computed in a single streaming pass. Fingerprints computed for a 
+ * database table (see {@link UserDAO#fingerprint()}) may be compared with 
+ * fingerprints for an in-memory data set or another database.
+ * </p>
+ */
+public final class Fingerprint {
+  
+  /**
+   * Source of fingerprints for ID ranges.
+   * @see UserDAO#fingerprint(int, int)
+   * @see Fingerprint#source(Iterable)
+   */
+  @FunctionalInterface
+  public interface Source {
+    /**
+     * Compute fingerprint for an ID range.
+     * @param lo Lower bound for ID (inclusive).
+     * @param hi Upper bound for ID (inclusive).
+     * @return Fingerprint for users in the given range.
+     * @throws SQLException if a database error occurs.
+     */
+    Fingerprint fingerprint(int lo, int hi) throws SQLException;
+  }
+  
+  /** Number of users. */
+  private long count;
+  /** Sum of user hashes. */
+  private long sum;
+  /** Exclusive-or of user hashes. */
+  private long xor;
+  
+  /**
+   * Constructor for empty fingerprint.
+   */
+  public Fingerprint() { 
+    
+  }
+  
+  /**
+   * Compute fingerprint for users.
+   * @param users Users.
+   * @return Fingerprint.
+   */
+  public static Fingerprint of(Iterable<User> users) {
+    Fingerprint f = new Fingerprint();
+    for (User u : users) {
+      f.add(u);
+    }
+    return f;
+  }
+  
+  /**
+   * Get fingerprint source for an in-memory data set.
+   * @param users Users.
+   * @return Fingerprint source.
+   */
+  public static Source source(Iterable<User> users) {
+    return (lo, hi) -> {
+      Fingerprint f = new Fingerprint();
+      for (User u : users) {
+        if (u.getId() >= lo && u.getId() <= hi) {
+          f.add(u);
+        }
+      }
+      return f;
+    };
+  }
+  
+  /**
+   * Add user to fingerprint.
+   * @param u User.
+   */
+  public void add(User u) {
+    long h = hash(u);
+    count++;
+    sum += h;
+    xor ^= h;
+  }
+  
+  /**
+   * Get number of users.
+   * @return Number of users added to the fingerprint.
+   */
+  public long getCount() {
+    return count;
+  }
+  
+  /**
+   * Compute 64-bit hash for a user.
+   * The hash depends only on user data, 
+   * and not on the JVM or database in use.
+   * @param u User.
+   * @return Hash value.
+   */
+  static long hash(User u) {
+    long h = FNV_OFFSET_BASIS;
+    h = hash(h, u.getId());
+    h = hash(h, u.getLogin());
+    h = hash(h, u.getName());
+    h = hash(h, u.getPassword());
+    h = hash(h, u.getRole() != null ? u.getRole().toString() : null);
+    Date created = u.getCreated();
+    h = hash(h, created != null ? created.toString() : null);
+    return mix(h);
+  }
+  
+  /** FNV-1a 64-bit offset basis. */
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  
+  /** FNV-1a 64-bit prime. */
+  private static final long FNV_PRIME = 0x100000001b3L;
+  
+  /**
+   * Hash integer value (FNV-1a).
+   * @param h Current hash.
+   * @param v Value.
+   * @return Updated hash.
+   */
+  private static long hash(long h, int v) {
+    for (int i = 0; i < 4; i++) {
+      h = (h ^ ((v >>> (8 * i)) & 0xff)) * FNV_PRIME;
+    }
+    return h;
+  }
+  
+  /**
+   * Hash string value (FNV-1a). 
+   * A length prefix is hashed first to separate 
+   * consecutive fields, and <code>null</code> is hashed as length -1.
+   * @param h Current hash.
+   * @param s Value.
+   * @return Updated hash.
+   */
+  private static long hash(long h, String s) {
+    if (s == null) {
+      return hash(h, -1);
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    h = hash(h, bytes.length);
+    for (byte b : bytes) {
+      h = (h ^ (b & 0xff)) * FNV_PRIME;
+    }
+    return h;
+  }
+  
+  /**
+   * Final mixing step (SplitMix64 finalizer), 
+   * so that hash bits are uniformly distributed before 
+   * they are summed.
+   * @param h Hash.
+   * @return Mixed hash.
+   */
+  private static long mix(long h) {
+    h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+    h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+    return h ^ (h >>> 31);
+  }
+  
+  /**
+   * Find mismatching ID ranges between two fingerprint sources.
+   * 
+   * <p>
+   * Fingerprints are compared for the given range, which is recursively 
+   * split in halves when they do not match, until ranges have 
+   * at most the given width.
+   * </p>
+   * 
+   * @param a First source.
+   * @param b Second source.
+   * @param lo Lower bound for ID (inclusive).
+   * @param hi Upper bound for ID (inclusive).
+   * @param minWidth Width at which ranges are no longer split.
+   * @return List of mismatching ranges, as <code>{lo, hi}</code> pairs
+   *    in ascending order (empty if fingerprints match).
+   * @throws SQLException if a database error occurs.
+   */
+  public static List<int[]> mismatches(Source a, Source b, int lo, int hi, int minWidth) 
+  throws SQLException {
+    if (minWidth <= 0) {
+      throw new IllegalArgumentException("Invalid width: " + minWidth);
+    }
+    List<int[]> result = new ArrayList<>();
+    mismatches(a, b, lo, hi, minWidth, result);
+    return result;
+  }
+  
+  /**
+   * Recursive step for {@link #mismatches(Source, Source, int, int, int)}.
+   * @param a First source.
+   * @param b Second source.
+   * @param lo Lower bound for ID (inclusive).
+   * @param hi Upper bound for ID (inclusive).
+   * @param minWidth Width at which ranges are no longer split.
+   * @param result List of mismatching ranges.
+   * @throws SQLException if a database error occurs.
+   */
+  private static void mismatches(Source a, Source b, int lo, int hi, int minWidth, List<int[]> result) 
+  throws SQLException {
+    if (a.fingerprint(lo, hi).equals(b.fingerprint(lo, hi))) {
+      return;
+    }
+    if ((long) hi - lo + 1 <= minWidth) {
+      result.add(new int[] { lo, hi });
+    } 
+    else {
+      int mid = (int) (((long) lo + hi) >> 1);
+      mismatches(a, b, lo, mid, minWidth, result);
+      mismatches(a, b, mid + 1, hi, minWidth, result);
+    }
+  }
+  
+  @Override 
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof Fingerprint)) {
+      return false;
+    }
+    Fingerprint other = (Fingerprint) o;
+    return count == other.count && sum == other.sum && xor == other.xor;
+  }
+  
+  @Override 
+  public int hashCode() {
+    return Long.hashCode(sum ^ xor);
+  }
+  
+  @Override 
+  public String toString() {
+    return String.format("%d:%016x%016x", count, sum, xor);
+  }
+}
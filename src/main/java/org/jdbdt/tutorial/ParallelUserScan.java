@@ -0,0 +1,473 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Parallel partitioned scan of the user table.
+ * 
+ * <p>
+ * The ID range is split into partitions, either evenly between
+ * the minimum and maximum ID or using sampled ID boundaries 
+ * (so that partitions have approximately the same number of rows when 
+ * IDs are not uniformly distributed). Each partition is then scanned 
+ * using its own connection in a thread pool.
+ * </p>
+ * 
+ * <p>
+ * Users may be fed to a consumer as they are read, in no particular order
+ * ({@link #scan(Consumer)}), streamed in ID order with bounded buffering
+ * ({@link #scanOrdered(Consumer)}), or collected in a list
+ * ({@link #getAllUsers()}).
+ * </p>
+ * 
+ * @see UserDAO#getAllUsers()
+ */
+public final class ParallelUserScan {
+
+  /** Default fetch size. */
+  public static final int DEFAULT_FETCH_SIZE = 1000;
+
+  /** Connection factory. */
+  private final ConnectionFactory connectionFactory;
+  
+  /** Parallelism level. */
+  private final int parallelism;
+  
+  /** Number of partitions. */
+  private int partitions;
+  
+  /** Use sampled partition boundaries. */
+  private boolean sampled;
+  
+  /** Fetch size. */
+  private int fetchSize = DEFAULT_FETCH_SIZE;
+  
+  /**
+   * Constructor.
+   * By default, the number of partitions equals the parallelism level 
+   * and partitions are split evenly between the minimum and maximum ID.
+   * @param connectionFactory Connection factory, used to 
+   *   obtain a connection per partition.
+   * @param parallelism Parallelism level.
+   */
+  public ParallelUserScan(ConnectionFactory connectionFactory, int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+    }
+    this.connectionFactory = connectionFactory;
+    this.parallelism = parallelism;
+    this.partitions = parallelism;
+  }
+  
+  /**
+   * Set number of partitions.
+   * @param n Number of partitions.
+   * @return The scan instance (for chained calls).
+   */
+  public ParallelUserScan partitions(int n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("Invalid number of partitions: " + n);
+    }
+    partitions = n;
+    return this;
+  }
+  
+  /**
+   * Enable or disable sampled partition boundaries.
+   * 
+   * <p>
+   * Boundaries are derived from an equi-width histogram of IDs,
+   * with {@value #HISTOGRAM_BUCKETS_PER_PARTITION} buckets per partition, 
+   * obtained by counting rows in each bucket, hence reading 
+   * the primary key index once and no other columns. 
+   * Buckets where a boundary falls and that hold more than 
+   * 1/{@value #HISTOGRAM_BUCKETS_PER_PARTITION} of a partition 
+   * are refined in the same way, so skewed IDs cost at most a few more 
+   * passes over those buckets only. Within the final bucket, 
+   * IDs are assumed to be uniformly distributed.
+   * </p>
+   * 
+   * @param enable Enable flag.
+   * @return The scan instance (for chained calls).
+   */
+  public ParallelUserScan sampled(boolean enable) {
+    sampled = enable;
+    return this;
+  }
+  
+  /**
+   * Set fetch size used for partition queries.
+   * @param n Fetch size.
+   * @return The scan instance (for chained calls).
+   */
+  public ParallelUserScan fetchSize(int n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("Invalid fetch size: " + n);
+    }
+    fetchSize = n;
+    return this;
+  }
+  
+  /** SQL for ID range query. */
+  private static final String 
+  SQL_FOR_ID_RANGE = "SELECT MIN(ID), MAX(ID), COUNT(*) FROM USERS";
+  
+  /** SQL for ID range count. */
+  private static final String 
+  SQL_FOR_ID_COUNT = "SELECT COUNT(*) FROM USERS WHERE ID >= ? AND ID <= ?";
+  
+  /** Histogram buckets per partition for sampled boundaries. */
+  static final int HISTOGRAM_BUCKETS_PER_PARTITION = 8;
+  
+  /** SQL for partition query. */
+  private static final String 
+  SQL_FOR_PARTITION = "SELECT ID, LOGIN, NAME, PASSWORD, ROLE, CREATED FROM USERS WHERE ID >= ? AND ID <= ? ORDER BY ID";
+  
+  /**
+   * Compute partition boundaries.
+   * @return Array of <code>2*p</code> elements holding 
+   *   the inclusive lower and upper bound for each partition 
+   *   (empty if the table is empty).
+   * @throws SQLException if a database error occurs.
+   */
+  int[] boundaries() throws SQLException {
+    try (Connection c = connectionFactory.newConnection()) {
+      long min, max;
+      int count;
+      try (PreparedStatement stmt = c.prepareStatement(SQL_FOR_ID_RANGE);
+           ResultSet rs = stmt.executeQuery()) {
+        rs.next();
+        count = rs.getInt(3);
+        if (count == 0) {
+          return new int[0];
+        }
+        min = rs.getInt(1);
+        max = rs.getInt(2);
+      }
+      long span = max - min + 1;
+      int p = (int) Math.min(partitions, Math.min(count, span));
+      int[] b = new int[2 * p];
+      b[0] = (int) min;
+      b[2 * p - 1] = (int) max;
+      if (sampled) {
+        sampledBoundaries(c, min, span, b);
+      } 
+      else {
+        for (int i = 1; i < p; i++) {
+          b[2 * i] = (int) (min + span * i / p);
+          b[2 * i - 1] = b[2 * i] - 1;
+        }
+      }
+      return b;
+    }
+  }
+  
+  /**
+   * Compute sampled partition boundaries from an ID histogram.
+   * @param c Database connection.
+   * @param min Minimum ID.
+   * @param span Width of the ID range.
+   * @param b Partition boundaries (first and last elements already set).
+   * @throws SQLException if a database error occurs.
+   */
+  private static void sampledBoundaries(Connection c, long min, long span, int[] b) 
+  throws SQLException {
+    int p = b.length / 2;
+    int buckets = (int) Math.min(span, (long) p * HISTOGRAM_BUCKETS_PER_PARTITION);
+    long[] start = new long[buckets + 1];
+    long[] cumulative = new long[buckets + 1];
+    try (PreparedStatement stmt = c.prepareStatement(SQL_FOR_ID_COUNT)) {
+      for (int j = 0; j <= buckets; j++) {
+        start[j] = min + span * j / buckets;
+      }
+      for (int j = 0; j < buckets; j++) {
+        cumulative[j + 1] = cumulative[j] + count(stmt, start[j], start[j + 1] - 1);
+      }
+      long total = cumulative[buckets];
+      long maxRows = Math.max(1, total / ((long) p * HISTOGRAM_BUCKETS_PER_PARTITION));
+      long max = min + span - 1;
+      long prev = min;
+      int j = 0;
+      for (int i = 1; i < p; i++) {
+        long target = total * i / p;
+        while (j < buckets - 1 && cumulative[j + 1] <= target) {
+          j++;
+        }
+        long id = split(stmt, start[j], start[j + 1] - 1, 
+                        cumulative[j + 1] - cumulative[j], target - cumulative[j], maxRows);
+        // Keep partitions non-empty and in order.
+        id = Math.min(Math.max(id, prev + 1), max - (p - 1 - i));
+        b[2 * i] = (int) id;
+        b[2 * i - 1] = (int) id - 1;
+        prev = id;
+      }
+    }
+  }
+  
+  /**
+   * Find the ID preceded by a given number of rows in an ID range.
+   * The range is refined using histograms until it holds at most a given
+   * number of rows, and IDs are then assumed to be uniformly distributed.
+   * @param stmt Statement for range counts.
+   * @param lo Lower bound of the range (inclusive).
+   * @param hi Upper bound of the range (inclusive).
+   * @param n Number of rows in the range.
+   * @param k Number of rows that should precede the ID.
+   * @param maxRows Maximum number of rows for interpolation.
+   * @return The ID (approximate if the range holds more than one row per ID).
+   * @throws SQLException if a database error occurs.
+   */
+  private static long split(PreparedStatement stmt, long lo, long hi, long n, long k, long maxRows) 
+  throws SQLException {
+    while (n > maxRows && hi > lo) {
+      long width = hi - lo + 1;
+      int buckets = (int) Math.min(width, HISTOGRAM_BUCKETS_PER_PARTITION);
+      long before = 0;
+      for (int j = 0; j < buckets; j++) {
+        long from = lo + width * j / buckets;
+        long to = lo + width * (j + 1) / buckets - 1;
+        long inBucket = count(stmt, from, to);
+        if (before + inBucket > k || j == buckets - 1) {
+          lo = from;
+          hi = to;
+          n = inBucket;
+          k -= before;
+          break;
+        }
+        before += inBucket;
+      }
+    }
+    return n > 0 ? lo + (hi - lo + 1) * k / n : lo;
+  }
+  
+  /**
+   * Count rows in an ID range.
+   * @param stmt Statement for range counts.
+   * @param lo Lower bound (inclusive).
+   * @param hi Upper bound (inclusive).
+   * @return Number of rows.
+   * @throws SQLException if a database error occurs.
+   */
+  private static long count(PreparedStatement stmt, long lo, long hi) throws SQLException {
+    stmt.setInt(1, (int) lo);
+    stmt.setInt(2, (int) hi);
+    try (ResultSet rs = stmt.executeQuery()) {
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+  
+  /**
+   * Scan a partition.
+   * @param lo Lower bound (inclusive).
+   * @param hi Upper bound (inclusive).
+   * @param consumer User consumer.
+   * @throws SQLException if a database error occurs.
+   */
+  private void scan(int lo, int hi, Consumer<? super User> consumer) throws SQLException {
+    try (Connection c = connectionFactory.newConnection();
+         PreparedStatement stmt = c.prepareStatement(SQL_FOR_PARTITION)) {
+      stmt.setFetchSize(fetchSize);
+      stmt.setInt(1, lo);
+      stmt.setInt(2, hi);
+      boolean compactRoles = UserDAO.hasCompactRoles(c);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          consumer.accept(UserDAO.readUser(rs, compactRoles));
+        }
+      }
+    }
+  }
+  
+  /**
+   * Scan partitions in parallel.
+   * @param b Partition boundaries.
+   * @param consumers Consumer to use for each partition.
+   * @throws SQLException if a database error occurs.
+   */
+  private void scanPartitions(int[] b, IntFunction<Consumer<? super User>> consumers) 
+  throws SQLException {
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<Future<Void>> tasks = new ArrayList<>();
+      for (int i = 0; i < b.length; i += 2) {
+        final int lo = b[i], hi = b[i + 1];
+        final Consumer<? super User> consumer = consumers.apply(i / 2);
+        tasks.add(pool.submit(() -> { scan(lo, hi, consumer); return null; }));
+      }
+      for (Future<Void> t : tasks) {
+        t.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted scan", e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new SQLException("Error during scan", e.getCause());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  /**
+   * Scan all users in parallel, feeding them to a consumer.
+   * The consumer is called concurrently from several threads, 
+   * hence it must be thread-safe. Users are fed
+   * in ID order within each partition, but there is no 
+   * ordering between partitions.
+   * @param consumer User consumer.
+   * @throws SQLException if a database error occurs.
+   */
+  public void scan(Consumer<? super User> consumer) throws SQLException {
+    scanPartitions(boundaries(), i -> consumer);
+  }
+  
+  /** Marker for the end of a partition in ordered scans. */
+  private static final Object END_OF_PARTITION = new Object();
+  
+  /**
+   * Scan all users in parallel, feeding them to a consumer in ID order.
+   * 
+   * <p>
+   * The consumer is called from the calling thread only.
+   * Partitions are scanned in parallel, each one into a buffer that holds 
+   * up to the fetch size in users, and buffers are drained in partition 
+   * order, so memory use is bounded regardless of table size. 
+   * Scans of partitions ahead of the one being consumed pause 
+   * when their buffer is full.
+   * </p>
+   * 
+   * @param consumer User consumer.
+   * @throws SQLException if a database error occurs.
+   */
+  public void scanOrdered(Consumer<? super User> consumer) throws SQLException {
+    int[] b = boundaries();
+    List<BlockingQueue<Object>> buffers = new ArrayList<>();
+    // Partitions must start in order, so that the one being consumed 
+    // is always running or done: a thread pool with a FIFO queue
+    // is used rather than a fork-join pool.
+    ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+    try {
+      for (int i = 0; i < b.length; i += 2) {
+        final int lo = b[i], hi = b[i + 1];
+        final BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(fetchSize);
+        buffers.add(buffer);
+        pool.submit(() -> {
+          Object last = END_OF_PARTITION;
+          try {
+            scan(lo, hi, u -> put(buffer, u));
+          }
+          catch (Throwable e) {
+            last = e;
+          }
+          put(buffer, last);
+        });
+      }
+      for (BlockingQueue<Object> buffer : buffers) {
+        for (Object o = buffer.take(); o != END_OF_PARTITION; o = buffer.take()) {
+          if (o instanceof User) {
+            consumer.accept((User) o);
+          }
+          else if (o instanceof SQLException) {
+            throw (SQLException) o;
+          }
+          else {
+            throw new SQLException("Error during scan", (Throwable) o);
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted scan", e);
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  /**
+   * Put element in the buffer of an ordered scan, 
+   * waiting if it is full.
+   * @param buffer Buffer.
+   * @param o Element.
+   * @throws CancellationException if interrupted, 
+   *   i.e., the ordered scan was aborted.
+   */
+  private static void put(BlockingQueue<Object> buffer, Object o) {
+    try {
+      buffer.put(o);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted scan");
+    }
+  }
+  
+  /**
+   * Get all users, scanning partitions in parallel.
+   * Partitions are read in full, without waiting for one another, 
+   * and their results are then concatenated in ID order,
+   * so all users are held in memory. 
+   * @return List of user objects (empty if no user exists).
+   * @see #scanOrdered(Consumer)
+   * @throws SQLException if a database error occurs.
+   */
+  public List<User> getAllUsers() throws SQLException {
+    int[] b = boundaries();
+    List<List<User>> results = new ArrayList<>();
+    for (int i = 0; i < b.length; i += 2) {
+      results.add(new ArrayList<>());
+    }
+    scanPartitions(b, i -> results.get(i)::add);
+    ArrayList<User> list = new ArrayList<>();
+    for (List<User> part : results) {
+      list.addAll(part);
+    }
+    return list;
+  }
+}
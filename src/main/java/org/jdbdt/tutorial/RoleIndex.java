@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.function.IntConsumer;
+
+/**
+ * In-memory index of user IDs by role.
+ * 
+ * <p>
+ * User IDs for each role are kept in sorted <code>int</code> arrays.
+ * The index is copy-on-write: mutations (which are serialized) 
+ * publish a new snapshot, so readers take no locks and always see 
+ * a consistent state. This suits tables that change rarely 
+ * compared to how often they are queried by role.
+ * </p>
+ * 
+ * <p>
+ * The index is maintained by {@link UserDAO} mutations once enabled, 
+ * but does not track transaction rollbacks or changes made by other 
+ * means, in which case it should be reloaded.
+ * </p>
+ * 
+ * @see UserDAO#enableRoleIndex()
+ */
+public final class RoleIndex {
+
+  /** Empty array. */
+  private static final int[] NO_IDS = new int[0];
+  
+  /** Current snapshot (never modified after publication). */
+  private volatile EnumMap<Role, int[]> snapshot;
+  
+  /**
+   * Constructor for empty index.
+   */
+  RoleIndex() {
+    clear();
+  }
+  
+  /**
+   * Get number of users with a role.
+   * @param role Role.
+   * @return Number of users with the given role.
+   */
+  public int count(Role role) {
+    return snapshot.get(role).length;
+  }
+  
+  /**
+   * Check if user has a role.
+   * @param role Role.
+   * @param id User ID.
+   * @return <code>true</code> if the user with the given ID has the given role.
+   */
+  public boolean contains(Role role, int id) {
+    return Arrays.binarySearch(snapshot.get(role), id) >= 0;
+  }
+  
+  /**
+   * Get role of a user.
+   * @param id User ID.
+   * @return Role of the user, <code>null</code> if the user is not indexed.
+   */
+  public Role roleOf(int id) {
+    EnumMap<Role, int[]> s = snapshot;
+    for (Role r : Role.values()) {
+      if (Arrays.binarySearch(s.get(r), id) >= 0) {
+        return r;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Get IDs of users with a role.
+   * @param role Role.
+   * @return Sorted array of user IDs (a copy).
+   */
+  public int[] getIds(Role role) {
+    return snapshot.get(role).clone();
+  }
+  
+  /**
+   * Iterate over IDs of users with a role, in ascending order.
+   * @param role Role.
+   * @param action Action for each ID.
+   */
+  public void forEach(Role role, IntConsumer action) {
+    for (int id : snapshot.get(role)) {
+      action.accept(id);
+    }
+  }
+  
+  /**
+   * Clear the index.
+   */
+  synchronized void clear() {
+    EnumMap<Role, int[]> s = new EnumMap<>(Role.class);
+    for (Role r : Role.values()) {
+      s.put(r, NO_IDS);
+    }
+    snapshot = s;
+  }
+  
+  /**
+   * Load the index.
+   * @param ids IDs for each role (arrays are sorted in place, 
+   *   and owned by the index afterwards).
+   */
+  synchronized void load(EnumMap<Role, int[]> ids) {
+    EnumMap<Role, int[]> s = new EnumMap<>(Role.class);
+    for (Role r : Role.values()) {
+      int[] a = ids.getOrDefault(r, NO_IDS);
+      Arrays.sort(a);
+      s.put(r, a);
+    }
+    snapshot = s;
+  }
+  
+  /**
+   * Set role for a user, adding it to the index if necessary.
+   * @param id User ID.
+   * @param role Role.
+   */
+  synchronized void put(int id, Role role) {
+    update(new int[] { id }, new Role[] { role });
+  }
+  
+  /**
+   * Set roles for several users, adding them to the index if necessary.
+   * A single snapshot is published for all users, hence the cost is 
+   * linear in the size of the index plus the number of users.
+   * If the same user occurs more than once, the last occurrence prevails.
+   * @param users Users.
+   */
+  synchronized void putAll(Collection<User> users) {
+    int n = users.size();
+    if (n == 0) {
+      return;
+    }
+    // Sort by ID, then by position, so that the last occurrence
+    // of each user comes last.
+    long[] keys = new long[n];
+    Role[] roles = new Role[n];
+    int i = 0;
+    for (User u : users) {
+      keys[i] = ((long) u.getId() << 32) | i;
+      roles[i] = u.getRole();
+      i++;
+    }
+    Arrays.sort(keys);
+    int[] ids = new int[n];
+    Role[] sortedRoles = new Role[n];
+    int k = 0;
+    for (i = 0; i < n; i++) {
+      int id = (int) (keys[i] >> 32);
+      if (k > 0 && ids[k - 1] == id) {
+        k--;
+      }
+      ids[k] = id;
+      sortedRoles[k] = roles[(int) keys[i]];
+      k++;
+    }
+    update(Arrays.copyOf(ids, k), Arrays.copyOf(sortedRoles, k));
+  }
+  
+  /**
+   * Remove user from the index.
+   * @param id User ID.
+   */
+  synchronized void remove(int id) {
+    update(new int[] { id }, new Role[1]);
+  }
+  
+  /**
+   * Remove several users from the index.
+   * A single snapshot is published for all users, hence the cost is 
+   * linear in the size of the index plus the number of users.
+   * @param ids User IDs.
+   */
+  synchronized void removeAll(int[] ids) {
+    if (ids.length == 0) {
+      return;
+    }
+    int[] sorted = ids.clone();
+    Arrays.sort(sorted);
+    int k = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (k == 0 || sorted[k - 1] != sorted[i]) {
+        sorted[k++] = sorted[i];
+      }
+    }
+    update(Arrays.copyOf(sorted, k), new Role[k]);
+  }
+  
+  /**
+   * Publish new snapshot with a sorted delta merged in.
+   * @param ids Sorted user IDs, without repetitions.
+   * @param roles New role for each user (<code>null</code> for removal).
+   */
+  private void update(int[] ids, Role[] roles) {
+    EnumMap<Role, int[]> s = new EnumMap<>(Role.class);
+    for (Role r : Role.values()) {
+      s.put(r, merge(snapshot.get(r), ids, roles, r));
+    }
+    snapshot = s;
+  }
+  
+  /**
+   * Merge delta into the sorted array of IDs for a role.
+   * @param a Array of IDs for the role.
+   * @param ids Sorted user IDs in the delta, without repetitions.
+   * @param roles New role for each user in the delta.
+   * @param role Role.
+   * @return New array, or the same array if unchanged.
+   */
+  private static int[] merge(int[] a, int[] ids, Role[] roles, Role role) {
+    int added = 0;
+    for (Role r : roles) {
+      if (r == role) {
+        added++;
+      }
+    }
+    int[] b = new int[a.length + added];
+    boolean changed = added > 0;
+    int i = 0, j = 0, k = 0;
+    while (i < a.length || j < ids.length) {
+      if (j == ids.length || (i < a.length && a[i] < ids[j])) {
+        b[k++] = a[i++];
+      }
+      else {
+        if (i < a.length && a[i] == ids[j]) {
+          // Replaced or removed.
+          i++;
+          changed = true;
+        }
+        if (roles[j] == role) {
+          b[k++] = ids[j];
+        }
+        j++;
+      }
+    }
+    if (!changed) {
+      return a;
+    }
+    return k == b.length ? b : Arrays.copyOf(b, k);
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Slow statement log.
+ * 
+ * <p>
+ * Statements whose execution takes at least a given threshold 
+ * are logged and kept in a bounded ring buffer that can be queried at runtime.
+ * Statements that fail are recorded as well, along with the error.
+ * Passwords are never recorded, {@link UserDAO} masks them 
+ * in bound parameters.
+ * Optionally, the execution plan of the statement is captured
+ * using <code>EXPLAIN</code> (H2), <code>EXPLAIN PLAN FOR</code> (HSQLDB)
+ * or runtime statistics (Derby).
+ * </p>
+ * 
+ * @see UserDAO#setStatementLog(StatementLog)
+ */
+public final class StatementLog {
+
+  /**
+   * Log entry.
+   */
+  public static final class Entry {
+    /** Time stamp (milliseconds since epoch). */
+    private final long timestamp;
+    /** SQL identifier. */
+    private final String sqlId;
+    /** SQL code. */
+    private final String sql;
+    /** Bound parameters. */
+    private final Object[] parameters;
+    /** Elapsed time in nanoseconds. */
+    private final long elapsed;
+    /** Rows touched. */
+    private final int rows;
+    /** Execution plan. */
+    private final String plan;
+    /** Error (if the statement failed). */
+    private final SQLException error;
+
+    /**
+     * Constructor.
+     * @param sqlId SQL identifier.
+     * @param sql SQL code.
+     * @param parameters Bound parameters.
+     * @param elapsed Elapsed time in nanoseconds.
+     * @param rows Rows touched.
+     * @param plan Execution plan (may be <code>null</code>).
+     * @param error Error (<code>null</code> if the statement succeeded).
+     */
+    Entry(String sqlId, String sql, Object[] parameters, long elapsed, int rows, 
+          String plan, SQLException error) {
+      this.timestamp = System.currentTimeMillis();
+      this.sqlId = sqlId;
+      this.sql = sql;
+      this.parameters = parameters.clone();
+      this.elapsed = elapsed;
+      this.rows = rows;
+      this.plan = plan;
+      this.error = error;
+    }
+
+    /**
+     * Get time stamp.
+     * @return Time at which the entry was recorded (milliseconds since epoch).
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * Get SQL identifier.
+     * @return Name of the SQL constant in {@link UserDAO} (e.g. <code>SQL_FOR_SELECT_BY_ROLE</code>).
+     */
+    public String getSQLId() {
+      return sqlId;
+    }
+
+    /**
+     * Get SQL code.
+     * @return The SQL code for the statement.
+     */
+    public String getSQL() {
+      return sql;
+    }
+
+    /**
+     * Get bound parameters.
+     * @return A copy of the statement parameters.
+     */
+    public Object[] getParameters() {
+      return parameters.clone();
+    }
+
+    /**
+     * Get elapsed time.
+     * @return Elapsed time in nanoseconds.
+     */
+    public long getElapsedTime() {
+      return elapsed;
+    }
+
+    /**
+     * Get rows touched.
+     * @return Number of rows read or updated by the statement,
+     *    <code>-1</code> if the statement failed.
+     */
+    public int getRows() {
+      return rows;
+    }
+
+    /**
+     * Get execution plan.
+     * @return Execution plan, or <code>null</code> if not captured.
+     */
+    public String getPlan() {
+      return plan;
+    }
+
+    /**
+     * Get error.
+     * @return Exception thrown by the statement, 
+     *    or <code>null</code> if the statement succeeded.
+     */
+    public SQLException getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s %s params=%s elapsed=%.3fms rows=%d%s%s",
+                           sqlId, sql, Arrays.toString(parameters),
+                           elapsed / 1e+06, rows,
+                           error != null ? " error=" + error.getSQLState() + " " + error.getMessage() : "",
+                           plan != null ? "\n" + plan : "");
+    }
+  }
+
+  /** Logger. */
+  private static final Logger LOGGER = Logger.getLogger(StatementLog.class.getName());
+
+  /** Ring buffer. */
+  private final Entry[] buffer;
+  /** Threshold in nanoseconds. */
+  private final long threshold;
+  /** Plan capture flag. */
+  private final boolean capturePlans;
+  /** Total number of entries recorded so far. */
+  private long count;
+
+  /**
+   * Constructor.
+   * @param capacity Ring buffer capacity.
+   * @param thresholdMillis Threshold in milliseconds.
+   * @param capturePlans Capture execution plans for slow statements.
+   */
+  public StatementLog(int capacity, long thresholdMillis, boolean capturePlans) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    this.buffer = new Entry[capacity];
+    this.threshold = thresholdMillis * 1000000L;
+    this.capturePlans = capturePlans;
+  }
+
+  /**
+   * Check if plans are captured.
+   * @return <code>true</code> if execution plans are captured.
+   */
+  public boolean capturesPlans() {
+    return capturePlans;
+  }
+
+  /**
+   * Get recorded entries.
+   * @return List of entries in the ring buffer, oldest first.
+   */
+  public synchronized List<Entry> getEntries() {
+    int n = (int) Math.min(count, buffer.length);
+    ArrayList<Entry> list = new ArrayList<>(n);
+    for (long i = count - n; i < count; i++) {
+      list.add(buffer[(int) (i % buffer.length)]);
+    }
+    return list;
+  }
+
+  /**
+   * Clear the log.
+   */
+  public synchronized void clear() {
+    Arrays.fill(buffer, null);
+    count = 0;
+  }
+
+  /** Database product name for Apache Derby. */
+  private static final String DERBY = "Apache Derby";
+  
+  /** Database product name for H2. */
+  private static final String H2 = "H2";
+
+  /** Database product name for HSQLDB. */
+  private static final String HSQLDB = "HSQL Database Engine";
+  
+  /**
+   * Prepare connection for plan capture.
+   * Runtime statistics are enabled (or disabled) for Derby connections,
+   * nothing is done for other database engines.
+   * @param c Database connection.
+   * @param enable Enable or disable.
+   * @throws SQLException If a database error occurs.
+   */
+  void setup(Connection c, boolean enable) throws SQLException {
+    if (capturePlans && DERBY.equals(c.getMetaData().getDatabaseProductName())) {
+      try (Statement stmt = c.createStatement()) {
+        stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(" + (enable ? 1 : 0) + ")");
+      }
+    }
+  }
+
+  /**
+   * Record statement execution.
+   * The statement is logged only if it is above the threshold.
+   * @param c Database connection.
+   * @param sqlId SQL identifier.
+   * @param sql SQL code.
+   * @param parameters Bound parameters.
+   * @param elapsed Elapsed time in nanoseconds.
+   * @param rows Rows touched (<code>-1</code> if the statement failed).
+   * @param error Error (<code>null</code> if the statement succeeded).
+   */
+  void record(Connection c, String sqlId, String sql, Object[] parameters, long elapsed, int rows,
+              SQLException error) {
+    if (elapsed < threshold) {
+      return;
+    }
+    String plan = null;
+    if (capturePlans) {
+      // Never fail the statement being logged, it has already executed.
+      try {
+        plan = capturePlan(c, sql, parameters);
+      }
+      catch (SQLException x) {
+        LOGGER.log(Level.WARNING, "Could not capture plan for " + sqlId, x);
+      }
+    }
+    Entry e = new Entry(sqlId, sql, parameters, elapsed, rows, plan, error);
+    synchronized (this) {
+      buffer[(int) (count % buffer.length)] = e;
+      count++;
+    }
+    LOGGER.warning(e.toString());
+  }
+
+  /**
+   * Capture execution plan.
+   * @param c Database connection.
+   * @param sql SQL code.
+   * @param parameters Bound parameters (missing ones are bound as <code>null</code>).
+   * @return Execution plan or <code>null</code> if the database engine
+   *    is not supported.
+   * @throws SQLException If a database error occurs.
+   */
+  private static String capturePlan(Connection c, String sql, Object[] parameters) 
+  throws SQLException {
+    String dbName = c.getMetaData().getDatabaseProductName();
+    String planSQL;
+    if (DERBY.equals(dbName)) {
+      // Statistics for previous statement
+      planSQL = "VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()";
+    } else if (H2.equals(dbName)) {
+      planSQL = "EXPLAIN " + sql;
+    } else if (HSQLDB.equals(dbName)) {
+      planSQL = "EXPLAIN PLAN FOR " + sql;
+    } else {
+      return null;
+    }
+    try (PreparedStatement stmt = c.prepareStatement(planSQL)) {
+      // HSQLDB does not take parameters for EXPLAIN PLAN FOR
+      int n = stmt.getParameterMetaData().getParameterCount();
+      for (int i = 0; i < n; i++) {
+        stmt.setObject(i + 1, i < parameters.length ? parameters[i] : null);
+      }
+      try (ResultSet rs = stmt.executeQuery()) {
+        StringBuilder sb = new StringBuilder();
+        while (rs.next()) {
+          String line = rs.getString(1);
+          if (line != null) {
+            if (sb.length() > 0) {
+              sb.append('\n');
+            }
+            sb.append(line);
+          }
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+      }
+    }
+  }
+}
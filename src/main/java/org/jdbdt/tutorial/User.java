@@ -39,6 +39,9 @@ public final class User {
   private String password;
   private Role role;
   private Date created;
+  // Row version, only used for tables with a VERSION column 
+  // (not considered for equality).
+  private int version;
 
   
   public User(int id, String login, String name, String password, Role role, Date created) {
@@ -98,6 +101,14 @@ public final class User {
     this.created = date;
   }
   
+  public int getVersion() {
+    return version;
+  }
+
+  public void setVersion(int version) {
+    this.version = version;
+  }
+  
   public boolean sameAs(User u) {
     return Arrays.equals(toArray(), u.toArray());
   }
@@ -0,0 +1,670 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Persistent user cache, stored off-heap in a memory-mapped file.
+ * 
+ * <p>
+ * Users are kept in fixed-size slots, addressed by ID using open addressing
+ * (linear probing), along with an open-addressing index of slots by login. 
+ * Removals use backward-shift deletion in both tables rather than 
+ * tombstones, so lookups never probe past the cluster of the key, 
+ * however many users were removed before.
+ * Since the file is memory-mapped, cached users survive process restarts 
+ * and do not take Java heap space.
+ * </p>
+ * 
+ * <p>
+ * Cache contents are validated on startup using a token that 
+ * identifies the table state: a table fingerprint or a high-water mark
+ * (see {@link #validate(Fingerprint)} and {@link #validate(int)}).
+ * The token should be recorded on shutdown using the corresponding 
+ * <code>checkpoint</code> method; changes made by {@link UserDAO} 
+ * clear the token, so a cache that was not checkpointed after 
+ * changes is not trusted.
+ * </p>
+ * 
+ * <p>
+ * Cached users include their passwords, as returned by {@link UserDAO}.
+ * On file systems that support POSIX permissions, the cache file is 
+ * therefore made readable and writable by its owner only. 
+ * The file is also locked for exclusive use while the cache is open,
+ * so that processes sharing it (e.g. during an overlapping deployment) 
+ * cannot corrupt it: opening a cache that is in use fails.
+ * </p>
+ * 
+ * <p>
+ * As for {@link RoleIndex}, cache contents are maintained by 
+ * {@link UserDAO} mutations but do not follow transaction rollbacks: 
+ * the cache should be cleared after a rollback of changes made through 
+ * the DAO, or of changes made by other means.
+ * </p>
+ * 
+ * @see UserDAO#setUserCache(UserCache)
+ */
+public final class UserCache implements Closeable {
+
+  /** Magic number. */
+  private static final int MAGIC = 0x4A444443;
+  /** Format version. */
+  private static final int FORMAT = 2;
+  
+  /** Header size. */
+  private static final int HEADER_SIZE = 128;
+  /** Header offset for magic number. */
+  private static final int H_MAGIC = 0;
+  /** Header offset for format version. */
+  private static final int H_FORMAT = 4;
+  /** Header offset for capacity. */
+  private static final int H_CAPACITY = 8;
+  /** Header offset for user count. */
+  private static final int H_COUNT = 12;
+  /** Header offset for validation token (length byte plus bytes). */
+  private static final int H_TOKEN = 16;
+  /** Maximum validation token length. */
+  private static final int MAX_TOKEN_LENGTH = HEADER_SIZE - H_TOKEN - 1;
+  
+  /** Maximum login length (as in the USERS table). */
+  private static final int MAX_LOGIN = 16;
+  /** Maximum name and password length (as in the USERS table). */
+  private static final int MAX_NAME = 32;
+  
+  /** Slot offset for state. */
+  private static final int S_STATE = 0;
+  /** Slot offset for ID. */
+  private static final int S_ID = 1;
+  /** Slot offset for version. */
+  private static final int S_VERSION = 5;
+  /** Slot offset for role. */
+  private static final int S_ROLE = 9;
+  /** Slot offset for creation date (epoch day). */
+  private static final int S_CREATED = 10;
+  /** Slot offset for login. */
+  private static final int S_LOGIN = 14;
+  /** Slot offset for name. */
+  private static final int S_NAME = S_LOGIN + 1 + 2 * MAX_LOGIN;
+  /** Slot offset for password. */
+  private static final int S_PASSWORD = S_NAME + 1 + 2 * MAX_NAME;
+  /** Slot size (a multiple of 8, slots are moved a long at a time). */
+  private static final int SLOT_SIZE = 192;
+  
+  /** Empty slot. */
+  private static final byte EMPTY = 0;
+  /** Used slot. */
+  private static final byte USED = 1;
+  
+  /** String length marker for null values. */
+  private static final int NULL_LENGTH = 0xff;
+  
+  /** File channel. */
+  private final FileChannel channel;
+  /** Mapped buffer. */
+  private final MappedByteBuffer buffer;
+  /** Capacity (number of slots, a power of two). */
+  private final int capacity;
+  /** Maximum number of users. */
+  private final int maxUsers;
+  /** Offset of login index. */
+  private final int loginIndexOffset;
+  
+  /**
+   * Open cache, creating it if necessary.
+   * If the file exists but was created with a different capacity or 
+   * is not a valid cache file, it is reset.
+   * @param file Cache file.
+   * @param capacity Capacity (rounded up to a power of two). 
+   *    At most 3/4 of the capacity is used for users.
+   * @return Cache instance.
+   * @throws IOException if an I/O error occurs, or the cache file is 
+   *   in use by another cache instance or process.
+   */
+  public static UserCache open(Path file, int capacity) throws IOException {
+    if (capacity <= 0 || capacity > (1 << 23)) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    int c = Integer.highestOneBit(capacity);
+    if (c < capacity) {
+      c <<= 1;
+    }
+    return new UserCache(file, c);
+  }
+  
+  /**
+   * Constructor.
+   * @param file Cache file.
+   * @param capacity Capacity (a power of two).
+   * @throws IOException if an I/O error occurs.
+   */
+  private UserCache(Path file, int capacity) throws IOException {
+    this.capacity = capacity;
+    this.maxUsers = capacity / 4 * 3;
+    this.loginIndexOffset = HEADER_SIZE + capacity * SLOT_SIZE;
+    long size = (long) loginIndexOffset + 4L * capacity;
+    channel = openChannel(file);
+    boolean valid;
+    try {
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      }
+      catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null) {
+        throw new IOException("Cache file in use: " + file);
+      }
+      valid = channel.size() == size;
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+    catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    valid = valid 
+        && buffer.getInt(H_MAGIC) == MAGIC 
+        && buffer.getInt(H_FORMAT) == FORMAT
+        && buffer.getInt(H_CAPACITY) == capacity;
+    if (!valid) {
+      buffer.putInt(H_MAGIC, MAGIC);
+      buffer.putInt(H_FORMAT, FORMAT);
+      buffer.putInt(H_CAPACITY, capacity);
+      clear();
+    }
+  }
+  
+  /** Owner-only file permissions. */
+  private static final Set<PosixFilePermission> OWNER_ONLY = 
+      PosixFilePermissions.fromString("rw-------");
+  
+  /**
+   * Open cache file channel, restricting file permissions to the owner 
+   * if the file system supports POSIX permissions.
+   * @param file Cache file.
+   * @return File channel.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static FileChannel openChannel(Path file) throws IOException {
+    if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      return FileChannel.open(file, 
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    FileChannel ch = FileChannel.open(file, 
+        EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+        PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    try {
+      // The attribute only applies to new files.
+      Files.setPosixFilePermissions(file, OWNER_ONLY);
+    }
+    catch (IOException e) {
+      ch.close();
+      throw e;
+    }
+    return ch;
+  }
+  
+  /**
+   * Get number of cached users.
+   * @return Number of cached users.
+   */
+  public synchronized int size() {
+    return buffer.getInt(H_COUNT);
+  }
+  
+  /**
+   * Clear the cache, including the validation token.
+   */
+  public synchronized void clear() {
+    for (int i = 0; i < capacity; i++) {
+      buffer.put(slotOffset(i) + S_STATE, EMPTY);
+      buffer.putInt(loginIndexOffset + 4 * i, 0);
+    }
+    buffer.putInt(H_COUNT, 0);
+    setToken("");
+  }
+  
+  /**
+   * Validate cache against a table fingerprint.
+   * If the fingerprint does not match the one recorded by
+   * {@link #checkpoint(Fingerprint)}, the cache is cleared.
+   * @param f Table fingerprint.
+   * @return <code>true</code> if the cache is valid.
+   * @see UserDAO#fingerprint()
+   */
+  public boolean validate(Fingerprint f) {
+    return validate("F" + f);
+  }
+  
+  /**
+   * Validate cache against a high-water mark (e.g. the maximum user ID).
+   * If the mark does not match the one recorded by
+   * {@link #checkpoint(int)}, the cache is cleared.
+   * @param highWaterMark High-water mark.
+   * @return <code>true</code> if the cache is valid.
+   */
+  public boolean validate(int highWaterMark) {
+    return validate("H" + highWaterMark);
+  }
+  
+  /**
+   * Record table fingerprint for validation on startup.
+   * @param f Table fingerprint.
+   */
+  public void checkpoint(Fingerprint f) {
+    checkpoint("F" + f);
+  }
+  
+  /**
+   * Record high-water mark for validation on startup.
+   * @param highWaterMark High-water mark.
+   */
+  public void checkpoint(int highWaterMark) {
+    checkpoint("H" + highWaterMark);
+  }
+  
+  /**
+   * Validate cache.
+   * @param token Validation token.
+   * @return <code>true</code> if the cache is valid.
+   */
+  private synchronized boolean validate(String token) {
+    if (!token.isEmpty() && token.equals(getToken())) {
+      return true;
+    }
+    clear();
+    return false;
+  }
+  
+  /**
+   * Record validation token and flush the cache to disk.
+   * @param token Validation token.
+   */
+  private synchronized void checkpoint(String token) {
+    setToken(token);
+    buffer.force();
+  }
+  
+  /**
+   * Mark cache as changed, clearing the validation token. 
+   */
+  synchronized void invalidate() {
+    setToken("");
+  }
+  
+  /**
+   * Get validation token.
+   * @return Validation token.
+   */
+  private String getToken() {
+    int n = buffer.get(H_TOKEN) & 0xff;
+    byte[] b = new byte[n];
+    for (int i = 0; i < n; i++) {
+      b[i] = buffer.get(H_TOKEN + 1 + i);
+    }
+    return new String(b, StandardCharsets.US_ASCII);
+  }
+  
+  /**
+   * Set validation token.
+   * @param token Validation token.
+   */
+  private void setToken(String token) {
+    byte[] b = token.getBytes(StandardCharsets.US_ASCII);
+    if (b.length > MAX_TOKEN_LENGTH) {
+      throw new IllegalArgumentException("Token too long: " + token);
+    }
+    buffer.put(H_TOKEN, (byte) b.length);
+    for (int i = 0; i < b.length; i++) {
+      buffer.put(H_TOKEN + 1 + i, b[i]);
+    }
+  }
+  
+  /**
+   * Get user by ID.
+   * @param id User ID.
+   * @return User object, or <code>null</code> if the user is not cached.
+   */
+  public synchronized User get(int id) {
+    int slot = findSlot(id);
+    return slot >= 0 ? readUser(slot) : null;
+  }
+  
+  /**
+   * Get user by login.
+   * @param login User login.
+   * @return User object, or <code>null</code> if the user is not cached.
+   */
+  public synchronized User get(String login) {
+    int slot = findLoginEntry(login);
+    return slot >= 0 ? readUser(buffer.getInt(loginIndexOffset + 4 * slot) - 1) : null;
+  }
+  
+  /**
+   * Cache user.
+   * @param u User.
+   * @return <code>true</code> if the user was cached, <code>false</code> if the 
+   *   cache is full or the user data does not fit in a slot.
+   */
+  public synchronized boolean put(User u) {
+    if (!fits(u.getLogin(), MAX_LOGIN) 
+        || !fits(u.getName(), MAX_NAME) 
+        || !fits(u.getPassword(), MAX_NAME)) {
+      return false;
+    }
+    int slot = findSlot(u.getId());
+    if (slot >= 0) {
+      removeLoginEntry(slot);
+    } 
+    else {
+      int count = buffer.getInt(H_COUNT);
+      if (count == maxUsers) {
+        return false;
+      }
+      slot = freeSlot(u.getId());
+      buffer.putInt(H_COUNT, count + 1);
+    }
+    writeUser(slot, u);
+    addLoginEntry(u.getLogin(), slot);
+    return true;
+  }
+  
+  /**
+   * Remove user from the cache.
+   * @param id User ID.
+   * @return <code>true</code> if the user was cached.
+   */
+  public synchronized boolean remove(int id) {
+    int slot = findSlot(id);
+    if (slot < 0) {
+      return false;
+    }
+    removeLoginEntry(slot);
+    removeSlot(slot);
+    buffer.putInt(H_COUNT, buffer.getInt(H_COUNT) - 1);
+    return true;
+  }
+  
+  /**
+   * Flush changes to disk and close the cache file, releasing its lock.
+   * @throws IOException if an I/O error occurs.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    buffer.force();
+    channel.close();
+  }
+  
+  /**
+   * Compute slot offset.
+   * @param slot Slot.
+   * @return Offset of slot in the file.
+   */
+  private static int slotOffset(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+  
+  /**
+   * Compute initial probe position for a hash value.
+   * @param h Hash value.
+   * @return Position.
+   */
+  private int position(int h) {
+    h *= 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (capacity - 1);
+  }
+  
+  /**
+   * Check if a position lies cyclically in the range <code>(i, j]</code>.
+   * @param k Position.
+   * @param i Range start (exclusive).
+   * @param j Range end (inclusive).
+   * @return <code>true</code> if <code>k</code> is in the range.
+   */
+  private static boolean inRange(int k, int i, int j) {
+    return i <= j ? i < k && k <= j : i < k || k <= j;
+  }
+  
+  /**
+   * Find slot for a user.
+   * @param id User ID.
+   * @return Slot, or <code>-1</code> if the user is not cached.
+   */
+  private int findSlot(int id) {
+    for (int i = 0, s = position(id); i < capacity; i++, s = (s + 1) & (capacity - 1)) {
+      int off = slotOffset(s);
+      byte state = buffer.get(off + S_STATE);
+      if (state == EMPTY) {
+        return -1;
+      }
+      if (buffer.getInt(off + S_ID) == id) {
+        return s;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * Find free slot for a user not in the cache.
+   * @param id User ID.
+   * @return Slot.
+   */
+  private int freeSlot(int id) {
+    int s = position(id);
+    while (buffer.get(slotOffset(s) + S_STATE) != EMPTY) {
+      s = (s + 1) & (capacity - 1);
+    }
+    return s;
+  }
+  
+  /**
+   * Free a slot using backward-shift deletion: users further along 
+   * the probe sequence are moved back, so no gap is left between 
+   * them and their initial probe position.
+   * The login index entry of the user in the slot must have been removed.
+   * @param slot Slot.
+   */
+  private void removeSlot(int slot) {
+    int i = slot;
+    int j = slot;
+    while (true) {
+      j = (j + 1) & (capacity - 1);
+      int off = slotOffset(j);
+      if (buffer.get(off + S_STATE) == EMPTY) {
+        break;
+      }
+      if (inRange(position(buffer.getInt(off + S_ID)), i, j)) {
+        continue;
+      }
+      // Move user from slot j to slot i.
+      buffer.putInt(loginIndexOffset + 4 * loginEntry(j), i + 1);
+      int to = slotOffset(i);
+      for (int k = 0; k < SLOT_SIZE; k += 8) {
+        buffer.putLong(to + k, buffer.getLong(off + k));
+      }
+      i = j;
+    }
+    buffer.put(slotOffset(i) + S_STATE, EMPTY);
+  }
+  
+  /**
+   * Find login index entry.
+   * @param login Login.
+   * @return Entry position, or <code>-1</code> if login is not indexed.
+   */
+  private int findLoginEntry(String login) {
+    for (int i = 0, e = position(login.hashCode()); i < capacity; i++, e = (e + 1) & (capacity - 1)) {
+      int v = buffer.getInt(loginIndexOffset + 4 * e);
+      if (v == 0) {
+        return -1;
+      }
+      if (login.equals(readString(slotOffset(v - 1) + S_LOGIN))) {
+        return e;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * Add login index entry.
+   * @param login Login.
+   * @param slot Slot for the user.
+   */
+  private void addLoginEntry(String login, int slot) {
+    int e = position(login.hashCode());
+    while (buffer.getInt(loginIndexOffset + 4 * e) != 0) {
+      e = (e + 1) & (capacity - 1);
+    }
+    buffer.putInt(loginIndexOffset + 4 * e, slot + 1);
+  }
+  
+  /**
+   * Find login index entry for a slot.
+   * @param slot Slot (must be in use).
+   * @return Entry position.
+   */
+  private int loginEntry(int slot) {
+    int e = position(readString(slotOffset(slot) + S_LOGIN).hashCode());
+    while (buffer.getInt(loginIndexOffset + 4 * e) != slot + 1) {
+      e = (e + 1) & (capacity - 1);
+    }
+    return e;
+  }
+  
+  /**
+   * Remove login index entry for a slot, using backward-shift deletion.
+   * @param slot Slot (must be in use).
+   */
+  private void removeLoginEntry(int slot) {
+    int i = loginEntry(slot);
+    int j = i;
+    while (true) {
+      j = (j + 1) & (capacity - 1);
+      int v = buffer.getInt(loginIndexOffset + 4 * j);
+      if (v == 0) {
+        break;
+      }
+      if (inRange(position(readString(slotOffset(v - 1) + S_LOGIN).hashCode()), i, j)) {
+        continue;
+      }
+      buffer.putInt(loginIndexOffset + 4 * i, v);
+      i = j;
+    }
+    buffer.putInt(loginIndexOffset + 4 * i, 0);
+  }
+  
+  /**
+   * Check if string fits in a slot field.
+   * @param s String.
+   * @param maxLength Maximum length.
+   * @return <code>true</code> if the string fits.
+   */
+  private static boolean fits(String s, int maxLength) {
+    return s == null || s.length() <= maxLength;
+  }
+  
+  /**
+   * Write user to slot.
+   * @param slot Slot.
+   * @param u User.
+   */
+  private void writeUser(int slot, User u) {
+    int off = slotOffset(slot);
+    buffer.put(off + S_STATE, USED);
+    buffer.putInt(off + S_ID, u.getId());
+    buffer.putInt(off + S_VERSION, u.getVersion());
+    buffer.put(off + S_ROLE, (byte) u.getRole().ordinal());
+    buffer.putInt(off + S_CREATED, (int) u.getCreated().toLocalDate().toEpochDay());
+    writeString(off + S_LOGIN, u.getLogin());
+    writeString(off + S_NAME, u.getName());
+    writeString(off + S_PASSWORD, u.getPassword());
+  }
+  
+  /**
+   * Read user from slot.
+   * @param slot Slot.
+   * @return User.
+   */
+  private User readUser(int slot) {
+    int off = slotOffset(slot);
+    User u = new User(buffer.getInt(off + S_ID),
+                      readString(off + S_LOGIN),
+                      readString(off + S_NAME),
+                      readString(off + S_PASSWORD),
+                      Role.values()[buffer.get(off + S_ROLE)],
+                      Date.valueOf(LocalDate.ofEpochDay(buffer.getInt(off + S_CREATED))));
+    u.setVersion(buffer.getInt(off + S_VERSION));
+    return u;
+  }
+  
+  /**
+   * Write string (length byte followed by UTF-16 chars).
+   * @param off Offset.
+   * @param s String (may be <code>null</code>).
+   */
+  private void writeString(int off, String s) {
+    if (s == null) {
+      buffer.put(off, (byte) NULL_LENGTH);
+      return;
+    }
+    buffer.put(off, (byte) s.length());
+    for (int i = 0; i < s.length(); i++) {
+      buffer.putChar(off + 1 + 2 * i, s.charAt(i));
+    }
+  }
+  
+  /**
+   * Read string.
+   * @param off Offset.
+   * @return String (may be <code>null</code>).
+   */
+  private String readString(int off) {
+    int n = buffer.get(off) & 0xff;
+    if (n == NULL_LENGTH) {
+      return null;
+    }
+    char[] chars = new char[n];
+    for (int i = 0; i < n; i++) {
+      chars[i] = buffer.getChar(off + 1 + 2 * i);
+    }
+    return new String(chars);
+  }
+}
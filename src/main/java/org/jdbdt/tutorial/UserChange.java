@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Change to a user, as computed by {@link UserDiff}.
+ */
+public final class UserChange {
+  
+  /** Change type. */
+  public enum Type {
+    /** User inserted. */
+    INSERT,
+    /** User deleted. */
+    DELETE,
+    /** User updated. */
+    UPDATE;
+  }
+  
+  /** Updatable user columns (all but ID). */
+  public enum Column {
+    /** Login. */
+    LOGIN,
+    /** Name. */
+    NAME,
+    /** Password. */
+    PASSWORD,
+    /** Role. */
+    ROLE,
+    /** Creation date. */
+    CREATED;
+  }
+  
+  /** Change type. */
+  private final Type type;
+  /** User data before change (<code>null</code> for insertions). */
+  private final User before;
+  /** User data after change (<code>null</code> for deletions). */
+  private final User after;
+  /** Changed columns. */
+  private final Set<Column> changedColumns;
+  
+  /**
+   * Constructor.
+   * @param type Change type.
+   * @param before User data before change.
+   * @param after User data after change.
+   * @param changedColumns Changed columns.
+   */
+  UserChange(Type type, User before, User after, Set<Column> changedColumns) {
+    this.type = type;
+    this.before = before;
+    this.after = after;
+    this.changedColumns = Collections.unmodifiableSet(changedColumns);
+  }
+  
+  /**
+   * Create insertion.
+   * @param u Inserted user.
+   * @return Change object.
+   */
+  static UserChange insert(User u) {
+    return new UserChange(Type.INSERT, null, u, EnumSet.allOf(Column.class));
+  }
+  
+  /**
+   * Create deletion.
+   * @param u Deleted user.
+   * @return Change object.
+   */
+  static UserChange delete(User u) {
+    return new UserChange(Type.DELETE, u, null, EnumSet.allOf(Column.class));
+  }
+  
+  /**
+   * Create update if user data differs.
+   * @param before User data before change.
+   * @param after User data after change.
+   * @return Change object, or <code>null</code> if user data is the same.
+   */
+  static UserChange update(User before, User after) {
+    Set<Column> changed = changedColumns(before, after);
+    return changed.isEmpty() ? null : new UserChange(Type.UPDATE, before, after, changed);
+  }
+  
+  /**
+   * Compute changed columns.
+   * @param a User data.
+   * @param b User data.
+   * @return Set of columns with different values.
+   */
+  static Set<Column> changedColumns(User a, User b) {
+    EnumSet<Column> changed = EnumSet.noneOf(Column.class);
+    if (!Objects.equals(a.getLogin(), b.getLogin())) {
+      changed.add(Column.LOGIN);
+    }
+    if (!Objects.equals(a.getName(), b.getName())) {
+      changed.add(Column.NAME);
+    }
+    if (!Objects.equals(a.getPassword(), b.getPassword())) {
+      changed.add(Column.PASSWORD);
+    }
+    if (a.getRole() != b.getRole()) {
+      changed.add(Column.ROLE);
+    }
+    if (!Objects.equals(a.getCreated(), b.getCreated())) {
+      changed.add(Column.CREATED);
+    }
+    return changed;
+  }
+  
+  /**
+   * Get change type.
+   * @return The change type.
+   */
+  public Type getType() {
+    return type;
+  }
+  
+  /**
+   * Get user ID.
+   * @return The ID of the changed user.
+   */
+  public int getId() {
+    return after != null ? after.getId() : before.getId();
+  }
+  
+  /**
+   * Get user data before change.
+   * @return User data, <code>null</code> for insertions.
+   */
+  public User getBefore() {
+    return before;
+  }
+  
+  /**
+   * Get user data after change.
+   * @return User data, <code>null</code> for deletions.
+   */
+  public User getAfter() {
+    return after;
+  }
+  
+  /**
+   * Get changed columns.
+   * @return Set of changed columns (all columns for insertions and deletions).
+   */
+  public Set<Column> getChangedColumns() {
+    return changedColumns;
+  }
+  
+  /**
+   * Get change mask.
+   * @return Bit mask of changed columns, bit <code>i</code> standing 
+   *    for column with ordinal <code>i</code>.
+   */
+  public int getChangeMask() {
+    int mask = 0;
+    for (Column c : changedColumns) {
+      mask |= 1 << c.ordinal();
+    }
+    return mask;
+  }
+  
+  @Override 
+  public String toString() {
+    return type + " " + getId() + " " + changedColumns;
+  }
+}
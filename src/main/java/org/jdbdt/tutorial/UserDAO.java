@@ -26,14 +26,27 @@ package org.jdbdt.tutorial;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
 
 /**
  * DAO for user table.
@@ -44,6 +57,21 @@ public final class UserDAO {
   /** Database connection. */
   private final Connection connection;
 
+  /** Statement log (may be <code>null</code>). */
+  private StatementLog statementLog;
+  
+  /** Versioning flag (<code>null</code> if not yet determined). */
+  private Boolean versioned;
+  
+  /** Compact roles flag (<code>null</code> if not yet determined). */
+  private Boolean compact;
+  
+  /** Role index (may be <code>null</code>). */
+  private RoleIndex roleIndex;
+  
+  /** User cache (may be <code>null</code>). */
+  private UserCache userCache;
+
   /** 
    * Auxiliary method to execute plain SQL (without arguments). 
    * @param sqlCode SQL code.
@@ -62,8 +90,206 @@ public final class UserDAO {
   public UserDAO(Connection c) {
     connection = c;
   }
-    
+  
+  /**
+   * Set statement log.
+   * @param log Statement log (<code>null</code> disables logging).
+   * @throws SQLException If a database error occurs.
+   * @see StatementLog
+   */
+  public void setStatementLog(StatementLog log) throws SQLException {
+    if (statementLog != null) {
+      statementLog.setup(connection, false);
+    }
+    if (log != null) {
+      log.setup(connection, true);
+    }
+    statementLog = log;
+  }
+  
+  /**
+   * Get statement log.
+   * @return The statement log in use, <code>null</code> if none is set.
+   */
+  public StatementLog getStatementLog() {
+    return statementLog;
+  }
+  
+  /** 
+   * SQL identifiers indexed by SQL code, for statement logging. 
+   * These are the names of the <code>SQL_FOR_*</code> constants.
+   * SQL code for partial updates is registered when first generated,
+   * under the identifier of the corresponding complete update.
+   */
+  private static final Map<String,String> SQL_IDS = new ConcurrentHashMap<>();
+  
+  static {
+    for (Field f : UserDAO.class.getDeclaredFields()) {
+      if (f.getName().startsWith("SQL_FOR_") 
+          && Modifier.isStatic(f.getModifiers())
+          && f.getType() == String.class) {
+        try {
+          SQL_IDS.put((String) f.get(null), f.getName());
+        }
+        catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Statement execution that may throw {@link SQLException}.
+   * @param <T> Type of result.
+   */
+  @FunctionalInterface
+  private interface Execution<T> {
+    /**
+     * Execute statement.
+     * @return Result.
+     * @throws SQLException if a database error occurs.
+     */
+    T execute() throws SQLException;
+  }
+  
+  /**
+   * Auxiliary method to execute a statement and log it.
+   * 
+   * <p>
+   * The statement is recorded in the statement log (if set) as soon
+   * as it completes, whether it succeeds or fails. Logging never throws, 
+   * so a statement that succeeded is never reported as failed.
+   * </p>
+   * 
+   * @param <T> Type of result.
+   * @param sql SQL code.
+   * @param execution Statement execution.
+   * @param rows Function giving the number of rows touched from the result.
+   * @param args Bound parameters.
+   * @return Result of the execution.
+   * @throws SQLException If a database error occurs.
+   */
+  private <T> T executeLogged(String sql, Execution<T> execution, 
+                              ToIntFunction<? super T> rows, Object... args) 
+  throws SQLException {
+    long start = System.nanoTime();
+    T result;
+    try {
+      result = execution.execute();
+    }
+    catch (SQLException e) {
+      log(sql, start, -1, e, args);
+      throw e;
+    }
+    log(sql, start, rows.applyAsInt(result), null, args);
+    return result;
+  }
+  
+  /**
+   * Auxiliary method to log statement execution.
+   * @param sql SQL code.
+   * @param start Start time as given by {@link System#nanoTime()}.
+   * @param rows Rows touched (<code>-1</code> if the statement failed).
+   * @param error Error thrown by the statement (<code>null</code> if it succeeded).
+   * @param args Bound parameters.
+   */
+  private void log(String sql, long start, int rows, SQLException error, Object... args) {
+    if (statementLog != null) {
+      long elapsed = System.nanoTime() - start;
+      String sqlId = SQL_IDS.getOrDefault(sql, sql);
+      statementLog.record(connection, sqlId, sql, args, elapsed, rows, error);
+    }
+  }
+  
+  /** Placeholder for passwords in statement logs. */
+  private static final String MASKED_PASSWORD = "***";
  
+ 
+  /**
+   * Update role index and user cache after a user is inserted or updated.
+   * @param u User data.
+   */
+  private void userChanged(User u) {
+    if (roleIndex != null) {
+      roleIndex.put(u.getId(), u.getRole());
+    }
+    if (userCache != null) {
+      if (!userCache.put(u)) {
+        userCache.remove(u.getId());
+      }
+      userCache.invalidate();
+    }
+  }
+  
+  /**
+   * Update role index and user cache after a user is deleted.
+   * @param id User ID.
+   */
+  private void userDeleted(int id) {
+    if (roleIndex != null) {
+      roleIndex.remove(id);
+    }
+    if (userCache != null) {
+      userCache.remove(id);
+      userCache.invalidate();
+    }
+  }
+  
+  /**
+   * Update role index and user cache after a batch of users 
+   * is inserted or updated.
+   * @param users User data.
+   * @param columns Inserted or updated columns.
+   */
+  private void usersChanged(List<User> users, Set<UserChange.Column> columns) {
+    if (roleIndex != null && columns.contains(UserChange.Column.ROLE)) {
+      roleIndex.putAll(users);
+    }
+    if (userCache != null) {
+      boolean allColumns = columns.size() == ALL_COLUMNS.size();
+      for (User u : users) {
+        // For partial updates, other columns in the user object may not 
+        // reflect the database state.
+        if (!allColumns || !userCache.put(u)) {
+          userCache.remove(u.getId());
+        }
+      }
+      userCache.invalidate();
+    }
+  }
+  
+  /**
+   * Update role index and user cache after a batch of users is deleted.
+   * @param users User data.
+   */
+  private void usersDeleted(List<User> users) {
+    if (roleIndex != null) {
+      int[] ids = new int[users.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = users.get(i).getId();
+      }
+      roleIndex.removeAll(ids);
+    }
+    if (userCache != null) {
+      for (User u : users) {
+        userCache.remove(u.getId());
+      }
+      userCache.invalidate();
+    }
+  }
+  
+  /**
+   * Update role index and user cache after all users are deleted.
+   */
+  private void allUsersDeleted() {
+    if (roleIndex != null) {
+      roleIndex.clear();
+    }
+    if (userCache != null) {
+      userCache.clear();
+    }
+  }
+  
   /** SQL for dropping table */
   private static final String SQL_FOR_TABLE_DROP = 
       "DROP TABLE USERS";
@@ -80,12 +306,18 @@ public final class UserDAO {
     if (exists) {
       executePlainSQL(SQL_FOR_TABLE_DROP);
     }
+    versioned = null;
+    compact = null;
+    allUsersDeleted();
     return false;
   }
   
   /** SQL script for table creation. */
   private static final String SQL_TABLE_SCRIPT = "/tableCreation.sql";
   
+  /** SQL script for table creation with compact roles. */
+  private static final String SQL_COMPACT_TABLE_SCRIPT = "/tableCreationCompact.sql";
+  
   /**
    * Create table.
    * It will drop the table if it exists before.
@@ -93,12 +325,370 @@ public final class UserDAO {
    * @see #dropTable()
    */
   public void createTable() throws SQLException, IOException {
+    createTable(false);
+  }
+  
+  /**
+   * Create table, optionally using compact storage for roles.
+   * It will drop the table if it exists before.
+   * @param compactRoles Store roles as <code>SMALLINT</code> codes 
+   *   (the ordinal of each {@link Role}) rather than names.
+   * @throws SQLException if a database error occurs.
+   * @see #dropTable()
+   * @see #hasCompactRoles()
+   */
+  public void createTable(boolean compactRoles) throws SQLException, IOException {
     dropTable();
-    try(DataInputStream in = new DataInputStream(getClass().getResourceAsStream(SQL_TABLE_SCRIPT))) {
+    String script = compactRoles ? SQL_COMPACT_TABLE_SCRIPT : SQL_TABLE_SCRIPT;
+    try(DataInputStream in = new DataInputStream(getClass().getResourceAsStream(script))) {
       byte[] fileContents = new byte[in.available()];
       in.readFully(fileContents);
       executePlainSQL(new String(fileContents));
     } 
+    versioned = false;
+    compact = compactRoles;
+  }
+  
+  /**
+   * Check if the table uses compact storage for roles.
+   * Roles are encoded and decoded transparently in either case.
+   * @return <code>true</code> if roles are stored as <code>SMALLINT</code> codes.
+   * @throws SQLException if a database error occurs.
+   * @see #createTable(boolean)
+   * @see #migrateToCompactRoles(int)
+   */
+  public boolean hasCompactRoles() throws SQLException {
+    if (compact == null) {
+      compact = hasCompactRoles(connection);
+    }
+    return compact;
+  }
+  
+  /**
+   * Check if the table uses compact storage for roles.
+   * @param c Database connection.
+   * @return <code>true</code> if roles are stored as <code>SMALLINT</code> codes.
+   * @throws SQLException if a database error occurs.
+   */
+  static boolean hasCompactRoles(Connection c) throws SQLException {
+    try (ResultSet rs = c.getMetaData().getColumns(null, null, "USERS", "ROLE")) {
+      return rs.next() && rs.getInt("DATA_TYPE") == Types.SMALLINT;
+    }
+  }
+  
+  /**
+   * Encode role for use as statement parameter.
+   * @param r Role.
+   * @return Role code or name, depending on the storage mode.
+   * @throws SQLException if a database error occurs.
+   */
+  private Object encodeRole(Role r) throws SQLException {
+    return encodeRole(r, hasCompactRoles());
+  }
+  
+  /**
+   * Encode role for use as statement parameter.
+   * @param r Role.
+   * @param compactRoles Compact storage flag.
+   * @return Role code or name.
+   */
+  static Object encodeRole(Role r, boolean compactRoles) {
+    return compactRoles ? (Object) (short) r.ordinal() : r.toString();
+  }
+  
+  /**
+   * Decode role from a result set column.
+   * @param rs Result set.
+   * @param column Column index for ROLE.
+   * @param compactRoles Compact storage flag.
+   * @return Role.
+   * @throws SQLException if a database error occurs.
+   */
+  static Role decodeRole(ResultSet rs, int column, boolean compactRoles) throws SQLException {
+    return compactRoles ? Role.values()[rs.getShort(column)] : Role.valueOf(rs.getString(column));
+  }
+  
+  /** SQL for adding the role code column during migration. */
+  private static final String SQL_FOR_ADD_ROLE_CODE_COLUMN = 
+      "ALTER TABLE USERS ADD COLUMN ROLE_CODE SMALLINT";
+  
+  /** 
+   * SQL for filling in role codes during migration
+   * (<code>%s</code> stands for the role code expression).
+   * @see #roleCodesSQL(String)
+   */
+  private static final String SQL_FOR_SET_ROLE_CODES = 
+      "UPDATE USERS SET ROLE_CODE = %s WHERE ID >= ? AND ID <= ?";
+  
+  /** 
+   * SQL for filling in role codes missed by batches during migration
+   * (<code>%s</code> stands for the role code expression).
+   * @see #roleCodesSQL(String)
+   */
+  private static final String SQL_FOR_SET_MISSING_ROLE_CODES = 
+      "UPDATE USERS SET ROLE_CODE = %s WHERE ROLE_CODE IS NULL";
+  
+  /** SQL for counting missing role codes during migration. */
+  private static final String SQL_FOR_COUNT_MISSING_ROLE_CODES = 
+      "SELECT COUNT(*) FROM USERS WHERE ROLE_CODE IS NULL";
+  
+  /** SQL for setting role code column as not null during migration (Derby). */
+  private static final String SQL_FOR_SET_ROLE_CODE_NOT_NULL_DERBY = 
+      "ALTER TABLE USERS ALTER COLUMN ROLE_CODE NOT NULL";
+  
+  /** SQL for setting role code column as not null during migration (H2, HSQLDB). */
+  private static final String SQL_FOR_SET_ROLE_CODE_NOT_NULL = 
+      "ALTER TABLE USERS ALTER COLUMN ROLE_CODE SET NOT NULL";
+  
+  /** SQL for setting the role code column default during migration. */
+  private static final String SQL_FOR_SET_ROLE_CODE_DEFAULT = 
+      "ALTER TABLE USERS ALTER COLUMN ROLE_CODE SET DEFAULT 1";
+  
+  /** SQL for dropping the old role column during migration. */
+  private static final String SQL_FOR_DROP_ROLE_COLUMN = 
+      "ALTER TABLE USERS DROP COLUMN ROLE";
+  
+  /** SQL for renaming the role code column during migration (Derby). */
+  private static final String SQL_FOR_RENAME_ROLE_CODE_COLUMN_DERBY = 
+      "RENAME COLUMN USERS.ROLE_CODE TO ROLE";
+  
+  /** SQL for renaming the role code column during migration (H2, HSQLDB). */
+  private static final String SQL_FOR_RENAME_ROLE_CODE_COLUMN = 
+      "ALTER TABLE USERS ALTER COLUMN ROLE_CODE RENAME TO ROLE";
+  
+  /** 
+   * Name of the role code check. 
+   * The table creation script for compact roles uses the same name.
+   */
+  private static final String ROLE_CHECK = "USERS_ROLE_CHECK";
+  
+  /** SQL for adding the role code check during migration. */
+  private static final String SQL_FOR_ADD_ROLE_CHECK = 
+      "ALTER TABLE USERS ADD CONSTRAINT " + ROLE_CHECK + " CHECK (ROLE BETWEEN 0 AND 2)";
+  
+  /** SQL for looking up the role code check (Derby). */
+  private static final String SQL_FOR_COUNT_ROLE_CHECKS_DERBY = 
+      "SELECT COUNT(*) FROM SYS.SYSCONSTRAINTS WHERE CONSTRAINTNAME = '" + ROLE_CHECK + "'";
+  
+  /** SQL for looking up the role code check (H2). */
+  private static final String SQL_FOR_COUNT_ROLE_CHECKS_H2 = 
+      "SELECT COUNT(*) FROM INFORMATION_SCHEMA.CONSTRAINTS WHERE CONSTRAINT_NAME = '" + ROLE_CHECK + "'";
+  
+  /** SQL for looking up the role code check (HSQLDB). */
+  private static final String SQL_FOR_COUNT_ROLE_CHECKS = 
+      "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS WHERE CONSTRAINT_NAME = '" + ROLE_CHECK + "'";
+  
+  /**
+   * Migrate table in place to compact storage for roles.
+   * 
+   * <p>
+   * A role code column is added and filled in batches of ID ranges, 
+   * followed by a final pass for rows that batches missed 
+   * (e.g., inserted concurrently). The old role column is dropped 
+   * and replaced by the new one only once no role codes are missing. 
+   * Role names that do not match a {@link Role} get no code, 
+   * hence they make the migration fail.
+   * If auto-commit is disabled for the connection, changes are committed 
+   * after each batch. 
+   * A migration that failed part way may be run again: an existing 
+   * role code column is reused, if the old role column 
+   * is already gone the migration resumes with the rename,
+   * and if the table already uses compact roles only the role code check
+   * is added (when missing).
+   * Only Derby, H2, and HSQLDB are supported.
+   * </p>
+   * 
+   * @param batchSize Width of ID ranges updated per batch.
+   * @throws SQLException if a database error occurs, or if role codes
+   * are still missing after the final pass.
+   * @see #hasCompactRoles()
+   */
+  public void migrateToCompactRoles(int batchSize) throws SQLException {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+    }
+    String dbName = connection.getMetaData().getDatabaseProductName();
+    boolean derby = "Apache Derby".equals(dbName);
+    boolean commit = !connection.getAutoCommit();
+    if (hasCompactRoles()) {
+      if (!hasRoleCheck(dbName)) {
+        executePlainSQL(SQL_FOR_ADD_ROLE_CHECK);
+        if (commit) {
+          connection.commit();
+        }
+      }
+      return;
+    }
+    if (hasColumn(connection, "ROLE")) {
+      if (!hasColumn(connection, "ROLE_CODE")) {
+        executePlainSQL(SQL_FOR_ADD_ROLE_CODE_COLUMN);
+      }
+      fillRoleCodes(batchSize, commit);
+      executePlainSQL(derby ? SQL_FOR_SET_ROLE_CODE_NOT_NULL_DERBY : SQL_FOR_SET_ROLE_CODE_NOT_NULL);
+      executePlainSQL(SQL_FOR_SET_ROLE_CODE_DEFAULT);
+      executePlainSQL(SQL_FOR_DROP_ROLE_COLUMN);
+    }
+    executePlainSQL(derby ? SQL_FOR_RENAME_ROLE_CODE_COLUMN_DERBY : SQL_FOR_RENAME_ROLE_CODE_COLUMN);
+    executePlainSQL(SQL_FOR_ADD_ROLE_CHECK);
+    if (commit) {
+      connection.commit();
+    }
+    compact = true;
+  }
+  
+  /**
+   * Check if the role code check exists.
+   * @param dbName Database product name.
+   * @return <code>true</code> if the check exists.
+   * @throws SQLException if a database error occurs.
+   */
+  private boolean hasRoleCheck(String dbName) throws SQLException {
+    String sql = "Apache Derby".equals(dbName) ? SQL_FOR_COUNT_ROLE_CHECKS_DERBY 
+               : "H2".equals(dbName) ? SQL_FOR_COUNT_ROLE_CHECKS_H2 
+               : SQL_FOR_COUNT_ROLE_CHECKS;
+    try (PreparedStatement stmt = connection.prepareStatement(sql);
+         ResultSet rs = stmt.executeQuery()) {
+      rs.next();
+      return rs.getInt(1) != 0;
+    }
+  }
+  
+  /**
+   * Get SQL for filling in role codes during migration.
+   * The role code expression maps the name of each {@link Role} 
+   * to its ordinal, and yields <code>NULL</code> for any other value.
+   * @param template SQL template.
+   * @return SQL code.
+   */
+  private static String roleCodesSQL(String template) {
+    StringBuilder sb = new StringBuilder("CASE ROLE");
+    for (Role r : Role.values()) {
+      sb.append(" WHEN '").append(r.name()).append("' THEN ").append(r.ordinal());
+    }
+    sb.append(" END");
+    String sql = String.format(template, sb);
+    SQL_IDS.putIfAbsent(sql, SQL_IDS.get(template));
+    return sql;
+  }
+  
+  /**
+   * Fill in role codes during migration, checking that none are missing.
+   * @param batchSize Width of ID ranges updated per batch.
+   * @param commit Commit after each batch.
+   * @throws SQLException if a database error occurs, or if role codes
+   * are still missing after the final pass.
+   */
+  private void fillRoleCodes(int batchSize, boolean commit) throws SQLException {
+    long lo, hi;
+    try (PreparedStatement stmt = connection.prepareStatement(SQL_FOR_MIN_MAX_ID);
+         ResultSet rs = stmt.executeQuery()) {
+      rs.next();
+      lo = rs.getInt(1);
+      hi = rs.getInt(2);
+    }
+    String sql = roleCodesSQL(SQL_FOR_SET_ROLE_CODES);
+    try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+      for (long from = lo; from <= hi; from += batchSize) {
+        int to = (int) Math.min(hi, from + batchSize - 1);
+        stmt.setInt(1, (int) from);
+        stmt.setInt(2, to);
+        executeLogged(sql, stmt::executeUpdate, n -> n, (int) from, to);
+        if (commit) {
+          connection.commit();
+        }
+      }
+    }
+    executePlainSQL(roleCodesSQL(SQL_FOR_SET_MISSING_ROLE_CODES));
+    if (commit) {
+      connection.commit();
+    }
+    int missing;
+    try (PreparedStatement stmt = connection.prepareStatement(SQL_FOR_COUNT_MISSING_ROLE_CODES);
+         ResultSet rs = stmt.executeQuery()) {
+      rs.next();
+      missing = rs.getInt(1);
+    }
+    if (missing != 0) {
+      throw new SQLException("Role codes missing for " + missing + " users");
+    }
+  }
+  
+  /** SQL to query the ID range. */
+  private static final String 
+  SQL_FOR_MIN_MAX_ID = "SELECT MIN(ID), MAX(ID) FROM USERS";
+
+  /** SQL for adding the VERSION column. */
+  private static final String SQL_FOR_ADD_VERSION_COLUMN = 
+      "ALTER TABLE USERS ADD COLUMN VERSION INTEGER DEFAULT 0 NOT NULL";
+  
+  /**
+   * Add VERSION column to the table, enabling optimistic version checking.
+   * Nothing is done if the table already has the column.
+   * @throws SQLException if a database error occurs.
+   * @see #isVersioned()
+   */
+  public void addVersionColumn() throws SQLException {
+    if (!isVersioned()) {
+      executePlainSQL(SQL_FOR_ADD_VERSION_COLUMN);
+      versioned = true;
+    }
+  }
+  
+  /**
+   * Check if the table has a VERSION column.
+   * 
+   * <p>
+   * For versioned tables, queries also read the version of each user, 
+   * and updates increment the version, checking that it is the same 
+   * as the one of the given user data (optimistic version checking).
+   * </p>
+   * 
+   * @return <code>true</code> if the table has a VERSION column.
+   * @throws SQLException if a database error occurs.
+   * @see #addVersionColumn()
+   * @see User#getVersion()
+   */
+  public boolean isVersioned() throws SQLException {
+    if (versioned == null) {
+      versioned = isVersioned(connection);
+    }
+    return versioned;
+  }
+  
+  /**
+   * Check if the table has a VERSION column.
+   * @param c Database connection.
+   * @return <code>true</code> if the table has a VERSION column.
+   * @throws SQLException if a database error occurs.
+   */
+  static boolean isVersioned(Connection c) throws SQLException {
+    return hasColumn(c, "VERSION");
+  }
+  
+  /**
+   * Check if the table has a given column.
+   * @param c Database connection.
+   * @param column Column name.
+   * @return <code>true</code> if the table has the column.
+   * @throws SQLException if a database error occurs.
+   */
+  private static boolean hasColumn(Connection c, String column) throws SQLException {
+    try (ResultSet rs = c.getMetaData().getColumns(null, null, "USERS", column)) {
+      return rs.next();
+    }
+  }
+  
+  /**
+   * Read user version, if the table is versioned.
+   * @param rs Result set.
+   * @param u User. 
+   * @param column Column index for VERSION.
+   * @throws SQLException if a database error occurs.
+   */
+  private void readVersion(ResultSet rs, User u, int column) throws SQLException {
+    if (isVersioned()) {
+      u.setVersion(rs.getInt(column));
+    }
   }
 
   /** SQL for table insertion. */
@@ -116,9 +706,57 @@ public final class UserDAO {
       stmt.setString(2, u.getLogin());
       stmt.setString(3, u.getName());
       stmt.setString(4, u.getPassword());
-      stmt.setString(5, u.getRole().toString());
+      stmt.setObject(5, encodeRole(u.getRole()));
       stmt.setDate(6, u.getCreated());
-      stmt.execute();
+      executeLogged(SQL_FOR_INSERT, stmt::executeUpdate, n -> n, insertArgs(u));
+    }
+    userChanged(u);
+  }
+  
+  /**
+   * Get bound parameters of an insertion for statement logging.
+   * @param u User data.
+   * @return Parameters, with the password masked.
+   * @throws SQLException if a database error occurs.
+   */
+  private Object[] insertArgs(User u) throws SQLException {
+    return new Object[] { 
+      u.getId(), u.getLogin(), u.getName(), MASKED_PASSWORD, 
+      encodeRole(u.getRole()), u.getCreated() 
+    };
+  }
+  
+  /** Batch size for batch insertions and updates. */
+  private static final int BATCH_SIZE = 1000;
+  
+  /**
+   * Insert several users using a batch of insertions.
+   * Each executed batch is recorded in the statement log (if set), 
+   * with the parameters bound for its first user.
+   * @param users User data for insertion.
+   * @throws SQLException if a database error occurs.
+   */
+  public void insertUsers(Collection<User> users) throws SQLException {
+    List<User> batch = new ArrayList<>(Math.min(users.size(), BATCH_SIZE));
+    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_INSERT)) {
+      for (User u : users) {
+        stmt.setInt(1, u.getId());
+        stmt.setString(2, u.getLogin());
+        stmt.setString(3, u.getName());
+        stmt.setString(4, u.getPassword());
+        stmt.setObject(5, encodeRole(u.getRole()));
+        stmt.setDate(6, u.getCreated());
+        stmt.addBatch();
+        batch.add(u);
+        if (batch.size() == BATCH_SIZE) {
+          executeUpdateBatch(stmt, SQL_FOR_INSERT, batch, insertArgs(batch.get(0)), 
+                             ALL_COLUMNS, false, null);
+        }
+      }
+      if (!batch.isEmpty()) {
+        executeUpdateBatch(stmt, SQL_FOR_INSERT, batch, insertArgs(batch.get(0)), 
+                           ALL_COLUMNS, false, null);
+      }
     }
   }
 
@@ -131,9 +769,12 @@ public final class UserDAO {
    * @throws SQLException If a database error occurs.
    */
   public int deleteAllUsers() throws SQLException {
+    int count;
     try (PreparedStatement stmt = connection.prepareStatement(SQL_FOR_DELETE_ALL)) {
-      return stmt.executeUpdate();
+      count = executeLogged(SQL_FOR_DELETE_ALL, stmt::executeUpdate, n -> n);
     }   
+    allUsersDeleted();
+    return count;
   }
 
   /** SQL for single user removal. */
@@ -147,10 +788,43 @@ public final class UserDAO {
    * @throws SQLException If a database error occurs.
    */
   public final boolean deleteUser(User u) throws SQLException {
+    int count;
     try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_DELETE)) {
       stmt.setInt(1, u.getId());
-      return stmt.executeUpdate() == 1;
+      count = executeLogged(SQL_FOR_DELETE, stmt::executeUpdate, n -> n, u.getId());
+    }
+    if (count == 1) {
+      userDeleted(u.getId());
     }
+    return count == 1;
+  }
+  
+  /**
+   * Delete several users using a batch of deletions.
+   * @param users User data.
+   * @return IDs of users that could not be found
+   *    (empty list if all users were deleted).
+   * @throws SQLException If a database error occurs.
+   */
+  public List<Integer> deleteUsers(Collection<User> users) throws SQLException {
+    List<Integer> failed = new ArrayList<>();
+    List<User> batch = new ArrayList<>(Math.min(users.size(), BATCH_SIZE));
+    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_DELETE)) {
+      for (User u : users) {
+        stmt.setInt(1, u.getId());
+        stmt.addBatch();
+        batch.add(u);
+        if (batch.size() == BATCH_SIZE) {
+          executeUpdateBatch(stmt, SQL_FOR_DELETE, batch, new Object[] { batch.get(0).getId() }, 
+                             null, false, failed);
+        }
+      }
+      if (!batch.isEmpty()) {
+        executeUpdateBatch(stmt, SQL_FOR_DELETE, batch, new Object[] { batch.get(0).getId() }, 
+                           null, false, failed);
+      }
+    }
+    return failed;
   }
 
   /** 
@@ -159,83 +833,363 @@ public final class UserDAO {
   private static final String SQL_FOR_UPDATE = 
       "UPDATE USERS SET LOGIN=?,NAME=?,PASSWORD=?,ROLE=?,CREATED=? WHERE ID=?";
   
+  /** 
+   * SQL used for table update with version checking.
+   */
+  private static final String SQL_FOR_UPDATE_VERSIONED = 
+      "UPDATE USERS SET LOGIN=?,NAME=?,PASSWORD=?,ROLE=?,CREATED=?,VERSION=VERSION+1"
+      + " WHERE ID=? AND VERSION=?";
+  
   /**
    * Update user.
+   * For versioned tables, the update only succeeds if the 
+   * user version is the same as in the database.
    * @param u User data for update.
    * @return <code>true</code> if update was successful, <code>false</code> otherwise
-   *    (user does not exist)
+   *    (user does not exist or version check failed)
    * @throws SQLException if a database error occurs.
+   * @see #isVersioned()
    */
   public final boolean updateUser(User u) throws SQLException {
+    if (isVersioned()) {
+      return updateUsers(Collections.singletonList(u)).isEmpty();
+    }
+    int count;
     try (PreparedStatement stmt = connection.prepareStatement(SQL_FOR_UPDATE)) {
         stmt.setString(1, u.getLogin());
         stmt.setString(2, u.getName());
         stmt.setString(3, u.getPassword());
-        stmt.setString(4, u.getRole().toString());
+        stmt.setObject(4, encodeRole(u.getRole()));
         stmt.setDate(5, u.getCreated());
         stmt.setInt(6, u.getId());
-        return stmt.executeUpdate() == 1;
+        count = executeLogged(SQL_FOR_UPDATE, stmt::executeUpdate, n -> n, 
+                              updateArgs(u, ALL_COLUMNS, false));
     }
+    if (count == 1) {
+      userChanged(u);
+    }
+    return count == 1;
+  }
+  
+  /** All columns that may be updated. */
+  private static final Set<UserChange.Column> ALL_COLUMNS = 
+      Collections.unmodifiableSet(EnumSet.allOf(UserChange.Column.class));
+  
+  /**
+   * Get bound parameters of an update for statement logging.
+   * @param u User data.
+   * @param columns Columns to update.
+   * @param checkVersion Version check flag.
+   * @return Parameters, with the password masked.
+   * @throws SQLException if a database error occurs.
+   */
+  private Object[] updateArgs(User u, Set<UserChange.Column> columns, boolean checkVersion) 
+  throws SQLException {
+    List<Object> args = new ArrayList<>(columns.size() + 2);
+    for (UserChange.Column c : columns) {
+      switch (c) {
+        case LOGIN:
+          args.add(u.getLogin());
+          break;
+        case NAME:
+          args.add(u.getName());
+          break;
+        case PASSWORD:
+          args.add(MASKED_PASSWORD);
+          break;
+        case ROLE:
+          args.add(encodeRole(u.getRole()));
+          break;
+        case CREATED:
+          args.add(u.getCreated());
+          break;
+      }
+    }
+    args.add(u.getId());
+    if (checkVersion) {
+      args.add(u.getVersion());
+    }
+    return args.toArray();
+  }
+  
+  /**
+   * Update several users using a batch of updates.
+   * @param users User data for update.
+   * @return IDs of users that could not be updated
+   *    (empty list if all updates were successful).
+   * @throws SQLException if a database error occurs.
+   * @see #updateUsers(Collection, Set)
+   */
+  public List<Integer> updateUsers(Collection<User> users) throws SQLException {
+    return updateUsers(users, ALL_COLUMNS);
+  }
+  
+  /**
+   * Update given columns for several users using a batch of updates 
+   * (partial update).
+   * 
+   * <p>
+   * For versioned tables, an update only succeeds if the 
+   * user version is the same as in the database, in which case
+   * the version is incremented in the database and in the given user object.
+   * </p>
+   * 
+   * <p>
+   * Each executed batch is recorded in the statement log (if set), 
+   * with the parameters bound for its first user.
+   * </p>
+   * 
+   * @param users User data for update.
+   * @param columns Columns to update.
+   * @return IDs of users that could not be updated, because they
+   *    do not exist or the version check failed
+   *    (empty list if all updates were successful).
+   * @throws SQLException if a database error occurs.
+   * @see #isVersioned()
+   */
+  public List<Integer> updateUsers(Collection<User> users, Set<UserChange.Column> columns) 
+  throws SQLException {
+    if (columns.isEmpty()) {
+      throw new IllegalArgumentException("No columns to update");
+    }
+    boolean checkVersion = isVersioned();
+    String sql = updateSQL(columns, checkVersion);
+    List<Integer> failed = new ArrayList<>();
+    List<User> batch = new ArrayList<>(Math.min(users.size(), BATCH_SIZE));
+    try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+      for (User u : users) {
+        int p = 1;
+        for (UserChange.Column c : columns) {
+          switch (c) {
+            case LOGIN:
+              stmt.setString(p++, u.getLogin());
+              break;
+            case NAME:
+              stmt.setString(p++, u.getName());
+              break;
+            case PASSWORD:
+              stmt.setString(p++, u.getPassword());
+              break;
+            case ROLE:
+              stmt.setObject(p++, encodeRole(u.getRole()));
+              break;
+            case CREATED:
+              stmt.setDate(p++, u.getCreated());
+              break;
+          }
+        }
+        stmt.setInt(p++, u.getId());
+        if (checkVersion) {
+          stmt.setInt(p, u.getVersion());
+        }
+        stmt.addBatch();
+        batch.add(u);
+        if (batch.size() == BATCH_SIZE) {
+          executeUpdateBatch(stmt, sql, batch, updateArgs(batch.get(0), columns, checkVersion), 
+                             columns, checkVersion, failed);
+        }
+      }
+      if (!batch.isEmpty()) {
+        executeUpdateBatch(stmt, sql, batch, updateArgs(batch.get(0), columns, checkVersion), 
+                           columns, checkVersion, failed);
+      }
+    }
+    return failed;
+  }
+  
+  /**
+   * Execute batch of insertions, updates or deletions, and log it.
+   * The role index and user cache are updated once for the whole batch.
+   * @param stmt Statement.
+   * @param sql SQL code for the statement.
+   * @param batch Users in the batch (cleared on exit).
+   * @param args Bound parameters for the first user in the batch (for logging).
+   * @param columns Inserted or updated columns (<code>null</code> for deletions).
+   * @param checkVersion Version check flag.
+   * @param failed List of IDs for failed updates (rows not found),
+   *    <code>null</code> for insertions (a failed insertion throws).
+   * @throws SQLException if a database error occurs.
+   */
+  private void executeUpdateBatch(PreparedStatement stmt, String sql, List<User> batch, 
+                                  Object[] args, Set<UserChange.Column> columns, 
+                                  boolean checkVersion, List<Integer> failed) 
+  throws SQLException {
+    int[] counts = executeLogged(sql, stmt::executeBatch, UserDAO::rowCount, args);
+    List<User> done = new ArrayList<>(counts.length);
+    for (int i = 0; i < counts.length; i++) {
+      User u = batch.get(i);
+      if (counts[i] == 0) {
+        if (failed != null) {
+          failed.add(u.getId());
+        }
+      } 
+      else {
+        done.add(u);
+        if (checkVersion) {
+          u.setVersion(u.getVersion() + 1);
+        }
+      }
+    }
+    batch.clear();
+    if (columns == null) {
+      usersDeleted(done);
+    }
+    else {
+      usersChanged(done, columns);
+    }
+  }
+  
+  /**
+   * Get number of rows touched by a batch.
+   * @param counts Update counts for the batch.
+   * @return Number of statements in the batch that touched a row.
+   */
+  private static int rowCount(int[] counts) {
+    int n = 0;
+    for (int c : counts) {
+      if (c != 0) {
+        n++;
+      }
+    }
+    return n;
+  }
+  
+  /**
+   * Get SQL for updates.
+   * @param columns Columns to update.
+   * @param checkVersion Version check flag.
+   * @return SQL code.
+   */
+  private static String updateSQL(Set<UserChange.Column> columns, boolean checkVersion) {
+    if (columns.size() == ALL_COLUMNS.size()) {
+      return checkVersion ? SQL_FOR_UPDATE_VERSIONED : SQL_FOR_UPDATE;
+    }
+    StringBuilder sb = new StringBuilder("UPDATE USERS SET ");
+    for (UserChange.Column c : columns) {
+      sb.append(c.name()).append("=?,");
+    }
+    if (checkVersion) {
+      sb.append("VERSION=VERSION+1 WHERE ID=? AND VERSION=?");
+    } 
+    else {
+      sb.setLength(sb.length() - 1);
+      sb.append(" WHERE ID=?");
+    }
+    String sql = sb.toString();
+    SQL_IDS.putIfAbsent(sql, SQL_IDS.get(checkVersion ? SQL_FOR_UPDATE_VERSIONED : SQL_FOR_UPDATE));
+    return sql;
   }
   
   /** SQL for user queries by id. */
   private static final String 
   SQL_FOR_SELECT_BY_ID = "SELECT LOGIN, NAME, PASSWORD, ROLE, CREATED FROM USERS WHERE ID = ? ";
   
+  /** SQL for user queries by id, for versioned tables. */
+  private static final String 
+  SQL_FOR_SELECT_BY_ID_VERSIONED = "SELECT LOGIN, NAME, PASSWORD, ROLE, CREATED, VERSION FROM USERS WHERE ID = ? ";
+  
   /**
    * Get user by id.
+   * The user cache is used if set.
    * @param id User id.
    * @return User object or <code>null</code>
    *         if the user does not exist.
    * @throws SQLException if a database error occurs.
    */
   public User getUser(int id) throws SQLException {
-    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_SELECT_BY_ID)) {
+    if (userCache != null) {
+      User u = userCache.get(id);
+      if (u != null) {
+        return u;
+      }
+    }
+    User u;
+    boolean compactRoles = hasCompactRoles();
+    String sql = isVersioned() ? SQL_FOR_SELECT_BY_ID_VERSIONED : SQL_FOR_SELECT_BY_ID;
+    try(PreparedStatement stmt = connection.prepareStatement(sql)) {
       stmt.setInt(1, id);
-      try (ResultSet rs = stmt.executeQuery()) {
-        return rs.next() ? 
-            new User(id,
-                rs.getString(1), 
-                rs.getString(2), 
-                rs.getString(3),
-                Role.valueOf(rs.getString(4)),
-                rs.getDate(5)) 
-        : null;
-      } 
+      u = executeLogged(sql, () -> {
+        try (ResultSet rs = stmt.executeQuery()) {
+          User r = rs.next() ? 
+              new User(id,
+                  rs.getString(1), 
+                  rs.getString(2), 
+                  rs.getString(3),
+                  decodeRole(rs, 4, compactRoles),
+                  rs.getDate(5)) 
+          : null;
+          if (r != null) {
+            readVersion(rs, r, 6);
+          }
+          return r;
+        } 
+      }, r -> r != null ? 1 : 0, id);
     }
+    if (userCache != null && u != null) {
+      userCache.put(u);
+    }
+    return u;
   }
   
   /** SQL for user queries by login. */
   private static final String 
   SQL_FOR_SELECT_BY_LOGIN = "SELECT ID, NAME, PASSWORD, ROLE, CREATED FROM USERS WHERE LOGIN = ? ";
+  
+  /** SQL for user queries by login, for versioned tables. */
+  private static final String 
+  SQL_FOR_SELECT_BY_LOGIN_VERSIONED = "SELECT ID, NAME, PASSWORD, ROLE, CREATED, VERSION FROM USERS WHERE LOGIN = ? ";
 
   /**
    * Get user by login.
+   * The user cache is used if set.
    * @param login User login.
    * @return User object or <code>null</code>
    *         if the user does not exist.
    * @throws SQLException if a database error occurs.
    */
   public User getUser(String login) throws SQLException {
-    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_SELECT_BY_LOGIN)) {
+    if (userCache != null) {
+      User u = userCache.get(login);
+      if (u != null) {
+        return u;
+      }
+    }
+    User u;
+    boolean compactRoles = hasCompactRoles();
+    String sql = isVersioned() ? SQL_FOR_SELECT_BY_LOGIN_VERSIONED : SQL_FOR_SELECT_BY_LOGIN;
+    try(PreparedStatement stmt = connection.prepareStatement(sql)) {
       stmt.setString(1, login);
-      try (ResultSet rs = stmt.executeQuery()) {
-        return rs.next() ? 
-            new User(rs.getInt(1),
-                login,
-                rs.getString(2), 
-                rs.getString(3),
-                Role.valueOf(rs.getString(4)),
-                rs.getDate(5)) 
-        : null;
-      } 
+      u = executeLogged(sql, () -> {
+        try (ResultSet rs = stmt.executeQuery()) {
+          User r = rs.next() ? 
+              new User(rs.getInt(1),
+                  login,
+                  rs.getString(2), 
+                  rs.getString(3),
+                  decodeRole(rs, 4, compactRoles),
+                  rs.getDate(5)) 
+          : null;
+          if (r != null) {
+            readVersion(rs, r, 6);
+          }
+          return r;
+        } 
+      }, r -> r != null ? 1 : 0, login);
     }
+    if (userCache != null && u != null) {
+      userCache.put(u);
+    }
+    return u;
   } 
   
   /** SQL to query all users. */
-  private static final String 
+  static final String 
   SQL_FOR_SELECT_ALL = "SELECT ID, LOGIN, NAME, PASSWORD, ROLE, CREATED FROM USERS";
   
+  /** SQL to query all users, for versioned tables. */
+  static final String 
+  SQL_FOR_SELECT_ALL_VERSIONED = "SELECT ID, LOGIN, NAME, PASSWORD, ROLE, CREATED, VERSION FROM USERS";
+  
   /**
    * Get all users.
    * @return List of user objects (empty if no user exists).
@@ -243,46 +1197,373 @@ public final class UserDAO {
    */
   public List<User> getAllUsers() throws SQLException {
     ArrayList<User> list = new ArrayList<>();
-    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_SELECT_ALL)) {
-      try (ResultSet rs = stmt.executeQuery()) {
-        while (rs.next()) {
-          list.add(new User(rs.getInt(1),
-                            rs.getString(2), 
-                            rs.getString(3), 
-                            rs.getString(4),
-                            Role.valueOf(rs.getString(5)),
-                            rs.getDate(6)));
+    boolean versioned = isVersioned();
+    boolean compactRoles = hasCompactRoles();
+    String sql = versioned ? SQL_FOR_SELECT_ALL_VERSIONED : SQL_FOR_SELECT_ALL;
+    try(PreparedStatement stmt = connection.prepareStatement(sql)) {
+      executeLogged(sql, () -> {
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            list.add(readUser(rs, compactRoles, versioned));
+          }
         }
         return list;
-      }
+      }, List::size);
+    }
+    return list;
+  }
+  
+  /**
+   * Read user from the current row of a result set.
+   * The result set must have the same columns as
+   * those selected by <code>SQL_FOR_SELECT_ALL</code>.
+   * @param rs Result set.
+   * @param compactRoles Compact storage flag.
+   * @return User object.
+   * @throws SQLException if a database error occurs.
+   * @see #hasCompactRoles(Connection)
+   */
+  static User readUser(ResultSet rs, boolean compactRoles) throws SQLException {
+    return new User(rs.getInt(1),
+                    rs.getString(2), 
+                    rs.getString(3), 
+                    rs.getString(4),
+                    decodeRole(rs, 5, compactRoles),
+                    rs.getDate(6));
+  }
+  
+  /**
+   * Read user from the current row of a result set,
+   * including the version for versioned tables.
+   * The result set must have the same columns as
+   * those selected by <code>SQL_FOR_SELECT_ALL_VERSIONED</code>
+   * for versioned tables, or by <code>SQL_FOR_SELECT_ALL</code> otherwise.
+   * @param rs Result set.
+   * @param compactRoles Compact storage flag.
+   * @param versioned Versioning flag.
+   * @return User object.
+   * @throws SQLException if a database error occurs.
+   */
+  static User readUser(ResultSet rs, boolean compactRoles, boolean versioned) throws SQLException {
+    User u = readUser(rs, compactRoles);
+    if (versioned) {
+      u.setVersion(rs.getInt(7));
     }
+    return u;
   }
   
   /** SQL to query users by role. */
-  private static final String 
+  static final String 
   SQL_FOR_SELECT_BY_ROLE = "SELECT ID, LOGIN, NAME, PASSWORD, ROLE, CREATED FROM USERS WHERE ROLE=?";
   
+  /** SQL to query users by role, for versioned tables. */
+  static final String 
+  SQL_FOR_SELECT_BY_ROLE_VERSIONED = "SELECT ID, LOGIN, NAME, PASSWORD, ROLE, CREATED, VERSION FROM USERS WHERE ROLE=?";
+  
   /**
    * Get users by role.
+   * 
+   * <p>
+   * If the role index is enabled, user IDs are taken from the index, 
+   * and users are taken from the user cache (if set) or looked up by ID,
+   * in which case they are returned in ID order.
+   * Otherwise, the database is queried by role.
+   * </p>
+   * 
    * @param role Role type.
    * @return List of user objects (empty if no user exists).
    * @throws SQLException if a database error occurs.
+   * @see #enableRoleIndex()
    */
   public List<User> getUsers(Role role) throws SQLException {
+    if (roleIndex != null) {
+      return getUsers(role, roleIndex.getIds(role));
+    }
     ArrayList<User> list = new ArrayList<>();
-    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_SELECT_BY_ROLE)) {
-      stmt.setString(1, role.toString());
-      try (ResultSet rs = stmt.executeQuery()) {
-        while (rs.next()) {
-          list.add(new User(rs.getInt(1),
-                            rs.getString(2), 
-                            rs.getString(3), 
-                            rs.getString(4),
-                            role,
-                            rs.getDate(6)));
+    String sql = isVersioned() ? SQL_FOR_SELECT_BY_ROLE_VERSIONED : SQL_FOR_SELECT_BY_ROLE;
+    try(PreparedStatement stmt = connection.prepareStatement(sql)) {
+      stmt.setObject(1, encodeRole(role));
+      executeLogged(sql, () -> {
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            User u = new User(rs.getInt(1),
+                              rs.getString(2), 
+                              rs.getString(3), 
+                              rs.getString(4),
+                              role,
+                              rs.getDate(6));
+            readVersion(rs, u, 7);
+            list.add(u);
+          }
         }
         return list;
+      }, List::size, encodeRole(role));
+    }
+    return list;
+  }
+  
+  /** Number of users per ID lookup (placeholders in <code>SQL_FOR_SELECT_BY_IDS</code>). */
+  private static final int LOOKUP_SIZE = 16;
+  
+  /** SQL for user queries by several IDs. */
+  private static final String 
+  SQL_FOR_SELECT_BY_IDS = "SELECT ID, LOGIN, NAME, PASSWORD, ROLE, CREATED FROM USERS"
+                          + " WHERE ID IN (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+  
+  /** SQL for user queries by several IDs, for versioned tables. */
+  private static final String 
+  SQL_FOR_SELECT_BY_IDS_VERSIONED = "SELECT ID, LOGIN, NAME, PASSWORD, ROLE, CREATED, VERSION FROM USERS"
+                                    + " WHERE ID IN (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+  
+  /**
+   * Get users by role, given their IDs as per the role index.
+   * Users that are not cached are looked up by ID, {@value #LOOKUP_SIZE} at a time.
+   * Users whose role changed by other means than this DAO are left out.
+   * @param role Role type.
+   * @param ids User IDs in ascending order.
+   * @return List of user objects in ID order.
+   * @throws SQLException if a database error occurs.
+   */
+  private List<User> getUsers(Role role, int[] ids) throws SQLException {
+    List<User> list = new ArrayList<>(ids.length);
+    int[] missing = new int[ids.length];
+    int n = 0;
+    for (int id : ids) {
+      User u = userCache != null ? userCache.get(id) : null;
+      if (u != null) {
+        list.add(u);
+      } 
+      else {
+        missing[n++] = id;
       }
     }
+    if (n == 0) {
+      return list;
+    }
+    boolean versioned = isVersioned();
+    boolean compactRoles = hasCompactRoles();
+    String sql = versioned ? SQL_FOR_SELECT_BY_IDS_VERSIONED : SQL_FOR_SELECT_BY_IDS;
+    try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+      for (int i = 0; i < n; i += LOOKUP_SIZE) {
+        Object[] args = new Object[LOOKUP_SIZE];
+        for (int j = 0; j < LOOKUP_SIZE; j++) {
+          // Repeat last ID to fill in remaining parameters.
+          args[j] = missing[Math.min(i + j, n - 1)];
+          stmt.setInt(j + 1, (Integer) args[j]);
+        }
+        int before = list.size();
+        executeLogged(sql, () -> {
+          try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+              User u = readUser(rs, compactRoles, versioned);
+              if (u.getRole() == role) {
+                list.add(u);
+              }
+            }
+          }
+          return list;
+        }, r -> r.size() - before, args);
+        if (userCache != null) {
+          for (User u : list.subList(before, list.size())) {
+            userCache.put(u);
+          }
+        }
+      }
+    }
+    list.sort(Comparator.comparingInt(User::getId));
+    return list;
+  }
+  
+  /** Fetch size for full table scans. */
+  private static final int SCAN_FETCH_SIZE = 1000;
+  
+  /**
+   * Compute table fingerprint.
+   * The fingerprint is computed in a single pass over the table.
+   * @return Fingerprint for all users.
+   * @throws SQLException if a database error occurs.
+   * @see Fingerprint
+   */
+  public Fingerprint fingerprint() throws SQLException {
+    Fingerprint f = new Fingerprint();
+    boolean compactRoles = hasCompactRoles();
+    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_SELECT_ALL)) {
+      stmt.setFetchSize(SCAN_FETCH_SIZE);
+      executeLogged(SQL_FOR_SELECT_ALL, () -> {
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            f.add(readUser(rs, compactRoles));
+          }
+        }
+        return f;
+      }, r -> (int) r.getCount());
+    }
+    return f;
+  }
+  
+  /** SQL to query users by ID range. */
+  private static final String 
+  SQL_FOR_SELECT_BY_ID_RANGE = "SELECT ID, LOGIN, NAME, PASSWORD, ROLE, CREATED FROM USERS WHERE ID >= ? AND ID <= ?";
+  
+  /**
+   * Compute fingerprint for an ID range.
+   * The fingerprint is computed in a single pass over the range.
+   * @param lo Lower bound for ID (inclusive).
+   * @param hi Upper bound for ID (inclusive).
+   * @return Fingerprint for users in the given range.
+   * @throws SQLException if a database error occurs.
+   * @see Fingerprint#mismatches(Fingerprint.Source, Fingerprint.Source, int, int, int)
+   */
+  public Fingerprint fingerprint(int lo, int hi) throws SQLException {
+    Fingerprint f = new Fingerprint();
+    boolean compactRoles = hasCompactRoles();
+    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_SELECT_BY_ID_RANGE)) {
+      stmt.setFetchSize(SCAN_FETCH_SIZE);
+      stmt.setInt(1, lo);
+      stmt.setInt(2, hi);
+      executeLogged(SQL_FOR_SELECT_BY_ID_RANGE, () -> {
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            f.add(readUser(rs, compactRoles));
+          }
+        }
+        return f;
+      }, r -> (int) r.getCount(), lo, hi);
+    }
+    return f;
+  }
+  
+  /** SQL to query user IDs and roles. */
+  private static final String 
+  SQL_FOR_SELECT_ID_AND_ROLE = "SELECT ID, ROLE FROM USERS";
+  
+  /**
+   * Enable role index.
+   * The index is (re)loaded in a single table scan, and kept up to date
+   * on every mutation made through this DAO.
+   * @return The role index.
+   * @throws SQLException if a database error occurs.
+   * @see RoleIndex
+   */
+  public RoleIndex enableRoleIndex() throws SQLException {
+    EnumMap<Role, int[]> ids = new EnumMap<>(Role.class);
+    int[] counts = new int[Role.values().length];
+    boolean compactRoles = hasCompactRoles();
+    for (Role r : Role.values()) {
+      ids.put(r, new int[16]);
+    }
+    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_SELECT_ID_AND_ROLE)) {
+      stmt.setFetchSize(SCAN_FETCH_SIZE);
+      executeLogged(SQL_FOR_SELECT_ID_AND_ROLE, () -> {
+        int total = 0;
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            Role r = decodeRole(rs, 2, compactRoles);
+            int[] a = ids.get(r);
+            int n = counts[r.ordinal()]++;
+            if (n == a.length) {
+              a = Arrays.copyOf(a, 2 * n);
+              ids.put(r, a);
+            }
+            a[n] = rs.getInt(1);
+            total++;
+          }
+        }
+        return total;
+      }, n -> n);
+    }
+    for (Role r : Role.values()) {
+      ids.put(r, Arrays.copyOf(ids.get(r), counts[r.ordinal()]));
+    }
+    if (roleIndex == null) {
+      roleIndex = new RoleIndex();
+    }
+    roleIndex.load(ids);
+    return roleIndex;
+  }
+  
+  /**
+   * Disable role index.
+   */
+  public void disableRoleIndex() {
+    roleIndex = null;
+  }
+  
+  /**
+   * Get role index.
+   * @return The role index, <code>null</code> if not enabled.
+   * @see #enableRoleIndex()
+   */
+  public RoleIndex getRoleIndex() {
+    return roleIndex;
+  }
+  
+  /** SQL to count users by role. */
+  private static final String 
+  SQL_FOR_COUNT_BY_ROLE = "SELECT COUNT(*) FROM USERS WHERE ROLE=?";
+  
+  /**
+   * Count users by role.
+   * The role index is used if enabled, 
+   * otherwise the database is queried.
+   * @param role Role type.
+   * @return Number of users with the given role.
+   * @throws SQLException if a database error occurs.
+   */
+  public int countUsers(Role role) throws SQLException {
+    if (roleIndex != null) {
+      return roleIndex.count(role);
+    }
+    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_COUNT_BY_ROLE)) {
+      stmt.setObject(1, encodeRole(role));
+      return executeLogged(SQL_FOR_COUNT_BY_ROLE, () -> {
+        try (ResultSet rs = stmt.executeQuery()) {
+          rs.next();
+          return rs.getInt(1);
+        }
+      }, n -> 1, encodeRole(role));
+    }
+  }
+  
+  /**
+   * Set user cache.
+   * If set, the cache is used for queries by ID and login, 
+   * and kept up to date on every mutation made through this DAO.
+   * @param cache User cache (<code>null</code> disables caching).
+   * @see UserCache
+   */
+  public void setUserCache(UserCache cache) {
+    userCache = cache;
+  }
+  
+  /**
+   * Get user cache.
+   * @return The user cache in use, <code>null</code> if none is set.
+   */
+  public UserCache getUserCache() {
+    return userCache;
+  }
+  
+  /** SQL to query the maximum user ID. */
+  private static final String 
+  SQL_FOR_MAX_ID = "SELECT MAX(ID) FROM USERS";
+  
+  /**
+   * Get maximum user ID.
+   * This may be used as a high-water mark to validate the user cache.
+   * @return Maximum user ID, or <code>-1</code> if there are no users.
+   * @throws SQLException if a database error occurs.
+   * @see UserCache#validate(int)
+   */
+  public int getMaxId() throws SQLException {
+    try(PreparedStatement stmt = connection.prepareStatement(SQL_FOR_MAX_ID)) {
+      return executeLogged(SQL_FOR_MAX_ID, () -> {
+        try (ResultSet rs = stmt.executeQuery()) {
+          rs.next();
+          int max = rs.getInt(1);
+          return rs.wasNull() ? -1 : max;
+        }
+      }, n -> 1);
+    }
   }
 }
@@ -0,0 +1,504 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Streaming diff between two user tables or snapshots.
+ * 
+ * <p>
+ * Both sides are read in ID order and merge-joined, 
+ * so only one user per side is held in memory at a time.
+ * Changes are reported as the ones that turn the first side
+ * ("from") into the second one ("to"), and may be consumed
+ * as they are computed, or written to a delta file that may
+ * later be replayed using a {@link UserDAO}.
+ * </p>
+ * 
+ * <p>
+ * For versioned tables, users read from tables carry their version.
+ * Delta files record the version of the first side for each update,
+ * and replay checks it against the target table.
+ * </p>
+ */
+public final class UserDiff {
+  
+  /**
+   * Private constructor to prevent instantiation.
+   */
+  private UserDiff() {
+    
+  }
+  
+  /**
+   * Cursor over users in ID order.
+   */
+  @FunctionalInterface
+  private interface Cursor {
+    /**
+     * Get next user.
+     * @return Next user, <code>null</code> at the end. 
+     * @throws SQLException if a database error occurs.
+     */
+    User next() throws SQLException;
+  }
+  
+  /** SQL to query all users in ID order. */
+  private static final String 
+  SQL_FOR_SELECT_ALL_BY_ID = UserDAO.SQL_FOR_SELECT_ALL + " ORDER BY ID";
+  
+  /** SQL to query all users in ID order, for versioned tables. */
+  private static final String 
+  SQL_FOR_SELECT_ALL_BY_ID_VERSIONED = UserDAO.SQL_FOR_SELECT_ALL_VERSIONED + " ORDER BY ID";
+  
+  /** Fetch size. */
+  private static final int FETCH_SIZE = 1000;
+  
+  /**
+   * Compute diff between two user tables.
+   * @param from Connection for the first table.
+   * @param to Connection for the second table.
+   * @param consumer Change consumer.
+   * @throws SQLException if a database error occurs.
+   */
+  public static void diff(Connection from, Connection to, Consumer<? super UserChange> consumer) 
+  throws SQLException {
+    boolean fromCompact = UserDAO.hasCompactRoles(from);
+    boolean toCompact = UserDAO.hasCompactRoles(to);
+    boolean fromVersioned = UserDAO.isVersioned(from);
+    boolean toVersioned = UserDAO.isVersioned(to);
+    try (PreparedStatement fromStmt = from.prepareStatement(
+           fromVersioned ? SQL_FOR_SELECT_ALL_BY_ID_VERSIONED : SQL_FOR_SELECT_ALL_BY_ID);
+         PreparedStatement toStmt = to.prepareStatement(
+           toVersioned ? SQL_FOR_SELECT_ALL_BY_ID_VERSIONED : SQL_FOR_SELECT_ALL_BY_ID)) {
+      fromStmt.setFetchSize(FETCH_SIZE);
+      toStmt.setFetchSize(FETCH_SIZE);
+      try (ResultSet fromRS = fromStmt.executeQuery(); 
+           ResultSet toRS = toStmt.executeQuery()) {
+        mergeJoin(() -> fromRS.next() ? UserDAO.readUser(fromRS, fromCompact, fromVersioned) : null, 
+                  () -> toRS.next() ? UserDAO.readUser(toRS, toCompact, toVersioned) : null, 
+                  consumer);
+      }
+    }
+  }
+  
+  /**
+   * Compute diff between two snapshots.
+   * @param from First snapshot (must be sorted by ID).
+   * @param to Second snapshot (must be sorted by ID).
+   * @param consumer Change consumer.
+   */
+  public static void diff(Iterable<User> from, Iterable<User> to, Consumer<? super UserChange> consumer) {
+    Iterator<User> fromIt = from.iterator();
+    Iterator<User> toIt = to.iterator();
+    try {
+      mergeJoin(() -> fromIt.hasNext() ? fromIt.next() : null, 
+                () -> toIt.hasNext() ? toIt.next() : null, 
+                consumer);
+    } 
+    catch (SQLException e) {
+      // Cannot happen.
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  /**
+   * Merge-join two cursors.
+   * @param from First cursor.
+   * @param to Second cursor.
+   * @param consumer Change consumer.
+   * @throws SQLException if a database error occurs.
+   */
+  private static void mergeJoin(Cursor from, Cursor to, Consumer<? super UserChange> consumer) 
+  throws SQLException {
+    User a = from.next();
+    User b = to.next();
+    while (a != null || b != null) {
+      if (b == null || (a != null && a.getId() < b.getId())) {
+        consumer.accept(UserChange.delete(a));
+        a = from.next();
+      } 
+      else if (a == null || b.getId() < a.getId()) {
+        consumer.accept(UserChange.insert(b));
+        b = to.next();
+      } 
+      else {
+        UserChange c = UserChange.update(a, b);
+        if (c != null) {
+          consumer.accept(c);
+        }
+        a = from.next();
+        b = to.next();
+      }
+    }
+  }
+  
+  /** Magic number for delta files. */
+  private static final int DELTA_MAGIC = 0x4A444454; 
+  
+  /** Delta file flag: versions are recorded for updates. */
+  private static final int DELTA_VERSIONED = 1;
+  
+  /**
+   * Compute diff between two user tables and write it to a delta file.
+   * If the first table is versioned, the delta file records 
+   * the version of each updated user in that table.
+   * @param from Connection for the first table.
+   * @param to Connection for the second table.
+   * @param file Delta file.
+   * @return Number of changes written.
+   * @throws SQLException if a database error occurs.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static int writeDelta(Connection from, Connection to, Path file) 
+  throws SQLException, IOException {
+    try (DataOutputStream out = 
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      boolean versioned = UserDAO.isVersioned(from);
+      out.writeInt(DELTA_MAGIC);
+      out.writeByte(versioned ? DELTA_VERSIONED : 0);
+      int[] count = { 0 };
+      try {
+        diff(from, to, c -> {
+          try {
+            write(out, c, versioned);
+            count[0]++;
+          }
+          catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+      catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return count[0];
+    }
+  }
+  
+  /**
+   * Read changes from a delta file.
+   * @param file Delta file.
+   * @param consumer Change consumer.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void readDelta(Path file, Consumer<? super UserChange> consumer) throws IOException {
+    try (DataInputStream in = 
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      boolean versioned = readHeader(in, file);
+      while (true) {
+        int type;
+        try {
+          type = in.readUnsignedByte();
+        }
+        catch (EOFException e) {
+          break;
+        }
+        consumer.accept(read(in, UserChange.Type.values()[type], versioned));
+      }
+    }
+  }
+  
+  /**
+   * Check if a delta file records versions.
+   * @param file Delta file.
+   * @return <code>true</code> if the delta file records the version 
+   *   of each updated user.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static boolean hasVersions(Path file) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      return readHeader(in, file);
+    }
+  }
+  
+  /**
+   * Read delta file header.
+   * @param in Input stream.
+   * @param file Delta file.
+   * @return <code>true</code> if the delta file records versions.
+   * @throws IOException if an I/O error occurs or the file is not a delta file.
+   */
+  private static boolean readHeader(DataInputStream in, Path file) throws IOException {
+    if (in.readInt() != DELTA_MAGIC) {
+      throw new IOException("Not a delta file: " + file);
+    }
+    return (in.readUnsignedByte() & DELTA_VERSIONED) != 0;
+  }
+  
+  /** Number of changes of the same kind replayed per DAO call. */
+  private static final int REPLAY_BATCH_SIZE = 1000;
+  
+  /**
+   * Replay a delta file.
+   * 
+   * <p>
+   * Deletions are applied first, then updates, then insertions,
+   * each in a separate pass over the file, so that logins freed by 
+   * deleted users may be reused by updated or inserted ones.
+   * Changes are applied in batches, using
+   * {@link UserDAO#deleteUsers(java.util.Collection)},
+   * {@link UserDAO#updateUsers(java.util.Collection, Set)} (for the
+   * columns changed by each update), and 
+   * {@link UserDAO#insertUsers(java.util.Collection)}.
+   * </p>
+   * 
+   * <p>
+   * For versioned tables, an update only succeeds if the user
+   * still has the version recorded in the delta file, i.e., 
+   * the user was not changed since the diff was computed.
+   * </p>
+   * 
+   * @param file Delta file.
+   * @param dao DAO for the table the changes apply to.
+   * @return IDs of users for which deletions or updates could not be 
+   *   applied, because the users do not exist or the version check failed
+   *   (empty list if all changes were applied).
+   * @throws SQLException if a database error occurs.
+   * @throws IOException if an I/O error occurs.
+   * @throws IllegalArgumentException if the table is versioned 
+   *   but the delta file does not record versions.
+   * @see #hasVersions(Path)
+   */
+  public static List<Integer> replay(Path file, UserDAO dao) throws SQLException, IOException {
+    if (dao.isVersioned() && !hasVersions(file)) {
+      throw new IllegalArgumentException("Delta file without versions for versioned table: " + file);
+    }
+    List<Integer> failed = new ArrayList<>();
+    List<User> deletes = new ArrayList<>();
+    forEach(file, UserChange.Type.DELETE, c -> {
+      deletes.add(c.getBefore());
+      if (deletes.size() == REPLAY_BATCH_SIZE) {
+        failed.addAll(dao.deleteUsers(deletes));
+        deletes.clear();
+      }
+    });
+    failed.addAll(dao.deleteUsers(deletes));
+    Map<Set<UserChange.Column>, List<User>> updates = new HashMap<>();
+    forEach(file, UserChange.Type.UPDATE, c -> {
+      List<User> batch = updates.computeIfAbsent(c.getChangedColumns(), k -> new ArrayList<>());
+      User u = c.getAfter();
+      u.setVersion(c.getBefore().getVersion());
+      batch.add(u);
+      if (batch.size() == REPLAY_BATCH_SIZE) {
+        failed.addAll(dao.updateUsers(batch, c.getChangedColumns()));
+        batch.clear();
+      }
+    });
+    for (Map.Entry<Set<UserChange.Column>, List<User>> e : updates.entrySet()) {
+      if (!e.getValue().isEmpty()) {
+        failed.addAll(dao.updateUsers(e.getValue(), e.getKey()));
+      }
+    }
+    List<User> inserts = new ArrayList<>();
+    forEach(file, UserChange.Type.INSERT, c -> {
+      inserts.add(c.getAfter());
+      if (inserts.size() == REPLAY_BATCH_SIZE) {
+        dao.insertUsers(inserts);
+        inserts.clear();
+      }
+    });
+    dao.insertUsers(inserts);
+    return failed;
+  }
+  
+  /**
+   * Action over a change that may throw {@link SQLException}.
+   */
+  @FunctionalInterface
+  private interface ChangeAction {
+    /**
+     * Apply action.
+     * @param c Change.
+     * @throws SQLException if a database error occurs.
+     */
+    void apply(UserChange c) throws SQLException;
+  }
+  
+  /**
+   * Iterate over changes of a given type in a delta file.
+   * @param file Delta file.
+   * @param type Change type.
+   * @param action Action for each change.
+   * @throws SQLException if a database error occurs.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static void forEach(Path file, UserChange.Type type, ChangeAction action) 
+  throws SQLException, IOException {
+    try {
+      readDelta(file, c -> {
+        if (c.getType() == type) {
+          try {
+            action.apply(c);
+          }
+          catch (SQLException e) {
+            throw new UncheckedSQLException(e);
+          }
+        }
+      });
+    }
+    catch (UncheckedSQLException e) {
+      throw e.getCause();
+    }
+  }
+  
+  /**
+   * Unchecked wrapper for {@link SQLException}, used to
+   * propagate errors through consumers.
+   */
+  @SuppressWarnings("serial")
+  private static final class UncheckedSQLException extends RuntimeException {
+    /**
+     * Constructor.
+     * @param cause Cause.
+     */
+    UncheckedSQLException(SQLException cause) {
+      super(cause);
+    }
+    
+    @Override
+    public synchronized SQLException getCause() {
+      return (SQLException) super.getCause();
+    }
+  }
+  
+  /**
+   * Write change.
+   * Updates are written with the change mask and the 
+   * user data before and after the change, 
+   * plus the version before the change if versions are recorded.
+   * @param out Output stream.
+   * @param c Change.
+   * @param versioned Record versions.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static void write(DataOutputStream out, UserChange c, boolean versioned) throws IOException {
+    out.writeByte(c.getType().ordinal());
+    switch (c.getType()) {
+      case INSERT:
+        write(out, c.getAfter());
+        break;
+      case DELETE:
+        write(out, c.getBefore());
+        break;
+      case UPDATE:
+        out.writeByte(c.getChangeMask());
+        write(out, c.getBefore());
+        write(out, c.getAfter());
+        if (versioned) {
+          out.writeInt(c.getBefore().getVersion());
+        }
+        break;
+    }
+  }
+  
+  /**
+   * Read change.
+   * @param in Input stream.
+   * @param type Change type.
+   * @param versioned Versions are recorded.
+   * @return Change.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static UserChange read(DataInputStream in, UserChange.Type type, boolean versioned) 
+  throws IOException {
+    switch (type) {
+      case INSERT:
+        return UserChange.insert(readUser(in));
+      case DELETE:
+        return UserChange.delete(readUser(in));
+      default:
+        int mask = in.readUnsignedByte();
+        Set<UserChange.Column> changed = EnumSet.noneOf(UserChange.Column.class);
+        for (UserChange.Column col : UserChange.Column.values()) {
+          if ((mask & (1 << col.ordinal())) != 0) {
+            changed.add(col);
+          }
+        }
+        User before = readUser(in);
+        User after = readUser(in);
+        if (versioned) {
+          before.setVersion(in.readInt());
+        }
+        return new UserChange(type, before, after, changed);
+    }
+  }
+  
+  /**
+   * Write user.
+   * @param out Output stream.
+   * @param u User.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static void write(DataOutputStream out, User u) throws IOException {
+    out.writeInt(u.getId());
+    out.writeUTF(u.getLogin());
+    out.writeBoolean(u.getName() != null);
+    if (u.getName() != null) {
+      out.writeUTF(u.getName());
+    }
+    out.writeUTF(u.getPassword());
+    out.writeByte(u.getRole().ordinal());
+    out.writeUTF(u.getCreated().toString());
+  }
+  
+  /**
+   * Read user.
+   * @param in Input stream.
+   * @return User.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static User readUser(DataInputStream in) throws IOException {
+    int id = in.readInt();
+    String login = in.readUTF();
+    String name = in.readBoolean() ? in.readUTF() : null;
+    String password = in.readUTF();
+    Role role = Role.values()[in.readUnsignedByte()];
+    Date created = Date.valueOf(in.readUTF());
+    return new User(id, login, name, password, role, created);
+  }
+}
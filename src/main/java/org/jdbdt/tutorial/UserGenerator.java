@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic generator of synthetic user data, for scale tests.
+ * 
+ * <p>
+ * The data for each user is a function of the generator seed 
+ * and the user ID alone, hence generation is deterministic
+ * regardless of how the ID range is split for parallel generation.
+ * Generated data respects the constraints of the USERS table:
+ * column lengths, unique logins, and valid roles.
+ * </p>
+ */
+public final class UserGenerator {
+  
+  /** Maximum login length. */
+  private static final int MAX_LOGIN = 16;
+  
+  /** Maximum name length. */
+  private static final int MAX_NAME = 32;
+  
+  /** First names. */
+  private static final String[] FIRST_NAMES = {
+    "Alice", "Bob", "Charles", "Diana", "Eduardo", "Fatima", "George", "Helena", 
+    "Ivan", "Joana", "Kenji", "Laura", "Miguel", "Nadia", "Oscar", "Paula",
+    "Quentin", "Rita", "Samuel", "Teresa", "Ulrich", "Vera", "William", "Yara"
+  };
+  
+  /** Last names. */
+  private static final String[] LAST_NAMES = {
+    "Almeida", "Brown", "Costa", "Dubois", "Evans", "Ferreira", "Garcia", "Hansen",
+    "Ito", "Jones", "Kowalski", "Lopes", "Martin", "Nguyen", "Olsen", "Pereira",
+    "Rossi", "Silva", "Tanaka", "Weber"
+  };
+  
+  /** Password characters. */
+  private static final String PASSWORD_CHARS = 
+      "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+  
+  /** Seed. */
+  private final long seed;
+  
+  /** Cumulative role weights. */
+  private final double[] roleWeights = { 0.01, 0.90, 1.0 };
+  
+  /** First creation date (epoch day). */
+  private long firstDay = LocalDate.of(2016, 1, 1).toEpochDay();
+  
+  /** Number of days in creation date spread. */
+  private long days = 365;
+  
+  /** Login pattern. */
+  private String loginPattern = "user%d";
+  
+  /** Fraction of users with no name. */
+  private double noNameFraction = 0.05;
+  
+  /**
+   * Constructor.
+   * By default, 1% of users are administrators, 89% regular users, and
+   * 10% guests, creation dates are spread over 2016, logins follow
+   * the <code>"user%d"</code> pattern, and 5% of users have no name.
+   * @param seed Seed.
+   */
+  public UserGenerator(long seed) {
+    this.seed = seed;
+  }
+  
+  /**
+   * Set role distribution.
+   * @param admin Weight for administrators.
+   * @param regular Weight for regular users.
+   * @param guest Weight for guests.
+   * @return The generator (for chained calls).
+   */
+  public UserGenerator roles(double admin, double regular, double guest) {
+    double total = admin + regular + guest;
+    if (admin < 0 || regular < 0 || guest < 0 || total <= 0) {
+      throw new IllegalArgumentException("Invalid role weights");
+    }
+    roleWeights[Role.ADMIN.ordinal()] = admin / total;
+    roleWeights[Role.REGULAR.ordinal()] = (admin + regular) / total;
+    roleWeights[Role.GUEST.ordinal()] = 1.0;
+    return this;
+  }
+  
+  /**
+   * Set range for creation dates.
+   * @param first First date.
+   * @param last Last date.
+   * @return The generator (for chained calls).
+   */
+  public UserGenerator created(Date first, Date last) {
+    long a = first.toLocalDate().toEpochDay();
+    long b = last.toLocalDate().toEpochDay();
+    if (b < a) {
+      throw new IllegalArgumentException("Invalid date range");
+    }
+    firstDay = a;
+    days = b - a + 1;
+    return this;
+  }
+  
+  /**
+   * Set login pattern.
+   * The pattern is used with {@link String#format(String, Object...)} 
+   * and the user ID as argument, and should yield distinct logins for 
+   * distinct IDs of at most 16 characters.
+   * @param pattern Login pattern.
+   * @return The generator (for chained calls).
+   */
+  public UserGenerator logins(String pattern) {
+    loginPattern = pattern;
+    return this;
+  }
+  
+  /**
+   * Set fraction of users with no name.
+   * @param fraction Fraction (between 0 and 1).
+   * @return The generator (for chained calls).
+   */
+  public UserGenerator noNames(double fraction) {
+    if (fraction < 0 || fraction > 1) {
+      throw new IllegalArgumentException("Invalid fraction: " + fraction);
+    }
+    noNameFraction = fraction;
+    return this;
+  }
+  
+  /**
+   * Generate user.
+   * @param id User ID.
+   * @return User data.
+   * @throws IllegalStateException if the login for the user is too long.
+   */
+  public User generate(int id) {
+    SplittableRandom rnd = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + id);
+    String login = String.format(loginPattern, id);
+    if (login.length() > MAX_LOGIN) {
+      throw new IllegalStateException("Login too long: " + login);
+    }
+    String name = null;
+    if (rnd.nextDouble() >= noNameFraction) {
+      name = FIRST_NAMES[rnd.nextInt(FIRST_NAMES.length)] 
+           + " " + LAST_NAMES[rnd.nextInt(LAST_NAMES.length)];
+      if (name.length() > MAX_NAME) {
+        name = name.substring(0, MAX_NAME);
+      }
+    }
+    char[] password = new char[8 + rnd.nextInt(9)];
+    for (int i = 0; i < password.length; i++) {
+      password[i] = PASSWORD_CHARS.charAt(rnd.nextInt(PASSWORD_CHARS.length()));
+    }
+    double r = rnd.nextDouble();
+    Role role = Role.GUEST;
+    for (Role candidate : Role.values()) {
+      if (r < roleWeights[candidate.ordinal()]) {
+        role = candidate;
+        break;
+      }
+    }
+    Date created = Date.valueOf(LocalDate.ofEpochDay(firstDay + rnd.nextLong(days)));
+    return new User(id, login, name, new String(password), role, created);
+  }
+  
+  /**
+   * Get stream of users.
+   * The stream may be turned parallel.
+   * @param firstId First user ID.
+   * @param count Number of users.
+   * @return Stream of users in ID order.
+   */
+  public Stream<User> stream(int firstId, int count) {
+    return IntStream.range(firstId, firstId + count).mapToObj(this::generate);
+  }
+  
+  /**
+   * Generate users and write them to a CSV file,
+   * with columns in the order of the USERS table and 
+   * empty values for users with no name.
+   * Values containing commas, quotes or line breaks (e.g. logins 
+   * from a custom pattern) are quoted as in RFC 4180.
+   * Users are generated in parallel but written in ID order.
+   * @param file File.
+   * @param firstId First user ID.
+   * @param count Number of users.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void write(Path file, int firstId, int count) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      out.write("ID,LOGIN,NAME,PASSWORD,ROLE,CREATED");
+      out.newLine();
+      stream(firstId, count).parallel().forEachOrdered(u -> {
+        try {
+          out.write(String.format("%d,%s,%s,%s,%s,%s", 
+                    u.getId(), csv(u.getLogin()), csv(u.getName() != null ? u.getName() : ""),
+                    csv(u.getPassword()), u.getRole(), u.getCreated()));
+          out.newLine();
+        }
+        catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+  
+  /**
+   * Format CSV value.
+   * @param value Value.
+   * @return The value, quoted and with inner quotes doubled 
+   *    if it contains a comma, quote or line break.
+   */
+  static String csv(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 
+        && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+  
+  /** Chunk size for insertions (users inserted per transaction). */
+  private static final int CHUNK_SIZE = 10000;
+  
+  /**
+   * Generate users and insert them in the database.
+   * The ID range is split in chunks that are generated and inserted in parallel, 
+   * using batched insertions over a connection per task.
+   * @param connectionFactory Connection factory.
+   * @param firstId First user ID.
+   * @param count Number of users.
+   * @param parallelism Parallelism level.
+   * @throws SQLException if a database error occurs.
+   * @throws IllegalArgumentException if <code>parallelism</code> is not positive.
+   * @see UserDAO#insertUsers(java.util.Collection)
+   */
+  public void insert(ConnectionFactory connectionFactory, int firstId, int count, int parallelism) 
+  throws SQLException {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+    }
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<Future<Void>> tasks = new ArrayList<>();
+      long chunk = ((long) count + parallelism - 1) / parallelism;
+      for (long lo = firstId; lo < (long) firstId + count; lo += chunk) {
+        final int from = (int) lo;
+        final int n = (int) Math.min(chunk, (long) firstId + count - lo);
+        tasks.add(pool.submit(() -> { insert(connectionFactory, from, n); return null; }));
+      }
+      for (Future<Void> t : tasks) {
+        t.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted insertion", e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new SQLException("Error during insertion", e.getCause());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  /**
+   * Generate users and insert them in the database using a single connection.
+   * @param connectionFactory Connection factory.
+   * @param firstId First user ID.
+   * @param count Number of users.
+   * @throws SQLException if a database error occurs.
+   */
+  private void insert(ConnectionFactory connectionFactory, int firstId, int count) 
+  throws SQLException {
+    try (Connection c = connectionFactory.newConnection()) {
+      c.setAutoCommit(false);
+      UserDAO dao = new UserDAO(c);
+      List<User> users = new ArrayList<>(Math.min(count, CHUNK_SIZE));
+      for (int i = 0; i < count; i += CHUNK_SIZE) {
+        int n = Math.min(CHUNK_SIZE, count - i);
+        for (int j = 0; j < n; j++) {
+          users.add(generate(firstId + i + j));
+        }
+        dao.insertUsers(users);
+        c.commit();
+        users.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Reactive publisher of users, with backpressure.
+ * 
+ * <p>
+ * Each subscriber gets its own connection and cursor. 
+ * The query is only executed once the subscriber signals demand,
+ * and the cursor only advances as demand is signaled 
+ * through {@link Subscription#request(long)}, hence slow consumers 
+ * throttle the database read. Users are emitted on the thread that
+ * signals demand. The cursor and connection are released 
+ * on completion, error, or cancellation. Queries and row decoding are
+ * those of {@link UserDAO}, so versions and role storage modes are
+ * handled in the same way.
+ * </p>
+ * 
+ * <p>
+ * Reactive Streams interfaces are used since the project targets Java 8;
+ * they are equivalent to those in <code>java.util.concurrent.Flow</code>
+ * (see <code>org.reactivestreams.FlowAdapters</code>).
+ * </p>
+ * 
+ * @see UserDAO#getAllUsers()
+ * @see UserDAO#getUsers(Role)
+ */
+public final class UserPublisher implements Publisher<User> {
+
+  /** Default maximum fetch size. */
+  public static final int DEFAULT_MAX_FETCH_SIZE = 256;
+  
+  /**
+   * Create publisher for all users.
+   * @param connectionFactory Connection factory.
+   * @return A new publisher.
+   */
+  public static UserPublisher allUsers(ConnectionFactory connectionFactory) {
+    return new UserPublisher(connectionFactory, null);
+  }
+  
+  /**
+   * Create publisher for users with a given role.
+   * @param connectionFactory Connection factory.
+   * @param role Role.
+   * @return A new publisher.
+   */
+  public static UserPublisher usersWithRole(ConnectionFactory connectionFactory, Role role) {
+    if (role == null) {
+      throw new NullPointerException("Null role");
+    }
+    return new UserPublisher(connectionFactory, role);
+  }
+  
+  /** Connection factory. */
+  private final ConnectionFactory connectionFactory;
+  
+  /** Role (<code>null</code> for all users). */
+  private final Role role;
+  
+  /** Maximum fetch size. */
+  private int maxFetchSize = DEFAULT_MAX_FETCH_SIZE;
+  
+  /**
+   * Constructor.
+   * @param connectionFactory Connection factory.
+   * @param role Role (<code>null</code> for all users).
+   */
+  private UserPublisher(ConnectionFactory connectionFactory, Role role) {
+    this.connectionFactory = connectionFactory;
+    this.role = role;
+  }
+  
+  /**
+   * Set maximum fetch size.
+   * The fetch size hint for the cursor is set to the outstanding demand,
+   * bounded by this value.
+   * @param n Maximum fetch size.
+   * @return The publisher (for chained calls).
+   */
+  public UserPublisher maxFetchSize(int n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("Invalid fetch size: " + n);
+    }
+    maxFetchSize = n;
+    return this;
+  }
+  
+  @Override
+  public void subscribe(Subscriber<? super User> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Null subscriber");
+    }
+    UserSubscription s = new UserSubscription(subscriber);
+    subscriber.onSubscribe(s);
+  }
+  
+  /**
+   * Subscription implementation.
+   * 
+   * <p>
+   * Signals are emitted by a drain loop that at most one thread
+   * executes at any time (the one that first increments the 
+   * work-in-progress counter), so the cursor is never accessed 
+   * concurrently, and recursive calls to {@link #request(long)} from
+   * within <code>onNext</code> do not recurse.
+   * </p>
+   */
+  private final class UserSubscription implements Subscription {
+    /** Subscriber. */
+    private final Subscriber<? super User> subscriber;
+    /** Outstanding demand. */
+    private final AtomicLong demand = new AtomicLong();
+    /** Work-in-progress counter. */
+    private final AtomicInteger wip = new AtomicInteger();
+    /** Cancellation flag. */
+    private volatile boolean cancelled;
+    /** Pending error due to invalid request. */
+    private volatile Throwable pendingError;
+    /** Terminal state flag (accessed only by drain loop). */
+    private boolean done;
+    /** Connection (accessed only by drain loop). */
+    private Connection connection;
+    /** Statement (accessed only by drain loop). */
+    private PreparedStatement stmt;
+    /** Result set (accessed only by drain loop). */
+    private ResultSet rs;
+    /** Versioning flag (accessed only by drain loop). */
+    private boolean versioned;
+    /** Compact roles flag (accessed only by drain loop). */
+    private boolean compactRoles;
+    
+    /**
+     * Constructor.
+     * @param subscriber Subscriber.
+     */
+    UserSubscription(Subscriber<? super User> subscriber) {
+      this.subscriber = subscriber;
+    }
+    
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        pendingError = new IllegalArgumentException("Non-positive request: " + n);
+      } 
+      else {
+        long r, u;
+        do {
+          r = demand.get();
+          if (r == Long.MAX_VALUE) {
+            break;
+          }
+          u = r + n;
+          if (u < 0) {
+            u = Long.MAX_VALUE;
+          }
+        } while (!demand.compareAndSet(r, u));
+      }
+      drain();
+    }
+    
+    @Override
+    public void cancel() {
+      cancelled = true;
+      drain();
+    }
+    
+    /**
+     * Drain loop.
+     */
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        if (!done) {
+          emit();
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+    
+    /**
+     * Emit users according to demand.
+     */
+    private void emit() {
+      try {
+        Throwable error = pendingError;
+        if (error != null) {
+          terminate();
+          subscriber.onError(error);
+          return;
+        }
+        long r = demand.get();
+        long e = 0;
+        if (!cancelled && r > 0) {
+          if (rs == null) {
+            open();
+          }
+          rs.setFetchSize((int) Math.min(r, maxFetchSize));
+          while (e != r && !cancelled) {
+            if (!rs.next()) {
+              terminate();
+              subscriber.onComplete();
+              return;
+            }
+            User u = UserDAO.readUser(rs, compactRoles, versioned);
+            try {
+              subscriber.onNext(u);
+            }
+            catch (Throwable t) {
+              // Subscriber failed, release the cursor and connection 
+              // rather than let the error escape the drain loop.
+              terminate();
+              subscriber.onError(t);
+              return;
+            }
+            e++;
+          }
+        }
+        if (cancelled) {
+          terminate();
+        }
+        else if (e != 0 && r != Long.MAX_VALUE) {
+          demand.addAndGet(-e);
+        }
+      }
+      catch (SQLException | RuntimeException e) {
+        terminate();
+        subscriber.onError(e);
+      }
+    }
+    
+    /**
+     * Open cursor.
+     * @throws SQLException if a database error occurs.
+     */
+    private void open() throws SQLException {
+      connection = connectionFactory.newConnection();
+      versioned = UserDAO.isVersioned(connection);
+      compactRoles = UserDAO.hasCompactRoles(connection);
+      if (role == null) {
+        stmt = connection.prepareStatement(versioned ? UserDAO.SQL_FOR_SELECT_ALL_VERSIONED 
+                                                     : UserDAO.SQL_FOR_SELECT_ALL);
+      } 
+      else {
+        stmt = connection.prepareStatement(versioned ? UserDAO.SQL_FOR_SELECT_BY_ROLE_VERSIONED 
+                                                     : UserDAO.SQL_FOR_SELECT_BY_ROLE);
+        stmt.setObject(1, UserDAO.encodeRole(role, compactRoles));
+      }
+      stmt.setFetchSize(maxFetchSize);
+      rs = stmt.executeQuery();
+    }
+    
+    /**
+     * Enter terminal state, releasing the cursor and connection.
+     * Each one is closed even if closing the others fails.
+     * Errors while closing are ignored.
+     */
+    private void terminate() {
+      done = true;
+      close(rs);
+      close(stmt);
+      close(connection);
+      rs = null;
+      stmt = null;
+      connection = null;
+    }
+    
+    /**
+     * Close a resource, ignoring errors.
+     * @param r Resource (may be <code>null</code>).
+     */
+    private void close(AutoCloseable r) {
+      if (r != null) {
+        try {
+          r.close();
+        }
+        catch (Exception e) {
+          // Ignore.
+        }
+      }
+    }
+  }
+}
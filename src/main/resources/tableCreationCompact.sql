@@ -0,0 +1,10 @@
+CREATE TABLE USERS 
+(
+   ID INTEGER PRIMARY KEY NOT NULL ,
+   LOGIN VARCHAR(16) UNIQUE NOT NULL,
+   NAME VARCHAR(32),
+   PASSWORD VARCHAR(32) NOT NULL,
+   ROLE SMALLINT DEFAULT 1 NOT NULL,
+   CREATED DATE NOT NULL,
+   CONSTRAINT USERS_ROLE_CHECK CHECK (ROLE BETWEEN 0 AND 2)
+)
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Table size and scan speed: standard vs. compact storage for roles.
+// Not part of the test suite, run with:
+//   java ... org.jdbdt.tutorial.CompactStorageBenchmark [rows]
+@SuppressWarnings("javadoc")
+public class CompactStorageBenchmark {
+
+  private static final String[][] ENGINES = {
+    { "derby", "jdbc:derby:%s;create=true", "CALL SYSCS_UTIL.SYSCS_CHECKPOINT_DATABASE()" },
+    { "h2", "jdbc:h2:%s", "CHECKPOINT" },
+    { "hsqldb", "jdbc:hsqldb:file:%s;hsqldb.default_table_type=cached;shutdown=true", "CHECKPOINT" }
+  };
+  
+  private static final int ROUNDS = 5;
+  
+  public static void main(String[] args) throws Exception {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    System.out.printf("%-7s %-8s %10s %14s %16s%n", 
+        "engine", "roles", "size(KB)", "getAllUsers ms", "getUsers(ADMIN) ms");
+    for (String[] engine : ENGINES) {
+      for (boolean compact : new boolean[] { false, true }) {
+        Path dir = Files.createTempDirectory("compactStorage");
+        String url = String.format(engine[1], dir.resolve("db"));
+        try (Connection c = DriverManager.getConnection(url)) {
+          UserDAO dao = new UserDAO(c);
+          dao.createTable(compact);
+          new UserGenerator(0).insert(() -> DriverManager.getConnection(url), 0, rows, parallelism);
+          try (Statement stmt = c.createStatement()) {
+            stmt.execute(engine[2]);
+          }
+          long size = size(dir);
+          long scanAll = Long.MAX_VALUE, scanRole = Long.MAX_VALUE;
+          for (int r = 0; r < ROUNDS; r++) {
+            long t = System.nanoTime();
+            dao.getAllUsers();
+            scanAll = Math.min(scanAll, System.nanoTime() - t);
+            t = System.nanoTime();
+            dao.getUsers(Role.ADMIN);
+            scanRole = Math.min(scanRole, System.nanoTime() - t);
+          }
+          System.out.printf("%-7s %-8s %10d %14.1f %16.1f%n", 
+              engine[0], compact ? "SMALLINT" : "VARCHAR", size / 1024, 
+              scanAll / 1e+06, scanRole / 1e+06);
+          dao.dropTable();
+        }
+        delete(dir);
+      }
+    }
+  }
+  
+  private static long size(Path dir) throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+    }
+  }
+  
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+}
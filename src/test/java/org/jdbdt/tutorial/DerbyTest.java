@@ -36,8 +36,11 @@ public class DerbyTest extends UserDAOTest {
   private static final String 
     DATABASE_URL = "jdbc:derby:./db/derby/jdbdtTutorial;create=true";
   
+  private static final String 
+    SCRATCH_DATABASE_URL = "jdbc:derby:memory:jdbdtTutorialScratch;create=true";
+  
   @BeforeClass
   public static void globalSetup() throws Throwable {
-    globalSetup(JDBC_DRIVER_CLASS, DATABASE_URL);
+    globalSetup(JDBC_DRIVER_CLASS, DATABASE_URL, SCRATCH_DATABASE_URL);
   }
 }
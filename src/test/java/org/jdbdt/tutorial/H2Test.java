@@ -36,8 +36,11 @@ public class H2Test extends UserDAOTest {
   private static final String 
     DATABASE_URL = "jdbc:h2:./db/h2/jdbdtTutorial";
   
+  private static final String 
+    SCRATCH_DATABASE_URL = "jdbc:h2:mem:jdbdtTutorialScratch";
+  
   @BeforeClass
   public static void globalSetup() throws Throwable {
-    globalSetup(JDBC_DRIVER_CLASS, DATABASE_URL);
+    globalSetup(JDBC_DRIVER_CLASS, DATABASE_URL, SCRATCH_DATABASE_URL);
   }
 }
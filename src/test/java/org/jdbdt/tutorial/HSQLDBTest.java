@@ -36,8 +36,11 @@ public class HSQLDBTest extends UserDAOTest {
   private static final String 
     DATABASE_URL = "jdbc:hsqldb:file:./db/hsqldb/jdbdtTutorial;shutdown=true";
   
+  private static final String 
+    SCRATCH_DATABASE_URL = "jdbc:hsqldb:mem:jdbdtTutorialScratch";
+  
   @BeforeClass
   public static void globalSetup() throws Throwable {
-    globalSetup(JDBC_DRIVER_CLASS, DATABASE_URL);
+    globalSetup(JDBC_DRIVER_CLASS, DATABASE_URL, SCRATCH_DATABASE_URL);
   }
 }
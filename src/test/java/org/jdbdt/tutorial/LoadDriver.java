@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Mixed-workload load driver for UserDAO.
+// Not part of the test suite, run with:
+//   java ... org.jdbdt.tutorial.LoadDriver [key=value ...]
+// Options (defaults in parentheses):
+//   engine=derby|h2|hsqldb (h2)  url=JDBC URL (overrides engine)
+//   users=initial users (100000)  threads=worker threads (8)
+//   rate=target ops/s, 0 for closed loop (0)  duration=seconds (30)
+//   warmup=seconds (5)  mix=getUser,getUsers,updateUser,insertUser (80,10,7,3)
+//
+// In open-loop mode (rate > 0) operations are scheduled at fixed intervals,
+// and latency is measured from the scheduled start time rather than 
+// the actual one, so that queueing delays are accounted for 
+// (correction for coordinated omission).
+@SuppressWarnings("javadoc")
+public class LoadDriver {
+
+  enum Op { GET_USER, GET_USERS, UPDATE_USER, INSERT_USER }
+  
+  private static final Map<String, String> ENGINE_URLS = new HashMap<>();
+  static {
+    ENGINE_URLS.put("derby", "jdbc:derby:memory:loadDriver;create=true");
+    ENGINE_URLS.put("h2", "jdbc:h2:mem:loadDriver;DB_CLOSE_DELAY=-1");
+    ENGINE_URLS.put("hsqldb", "jdbc:hsqldb:mem:loadDriver");
+  }
+  
+  // Latency samples for an operation (one instance per worker thread).
+  static final class Samples {
+    long[] values = new long[1024];
+    int count;
+    int errors;
+    
+    void add(long v) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, 2 * count);
+      }
+      values[count++] = v;
+    }
+    
+    void addAll(Samples other) {
+      for (int i = 0; i < other.count; i++) {
+        add(other.values[i]);
+      }
+      errors += other.errors;
+    }
+  }
+  
+  public static void main(String[] args) throws Exception {
+    Map<String, String> opt = new HashMap<>();
+    for (String a : args) {
+      int i = a.indexOf('=');
+      if (i < 0) {
+        throw new IllegalArgumentException("Invalid option: " + a);
+      }
+      opt.put(a.substring(0, i), a.substring(i + 1));
+    }
+    String engine = opt.getOrDefault("engine", "h2");
+    String url = opt.getOrDefault("url", ENGINE_URLS.get(engine));
+    if (url == null) {
+      throw new IllegalArgumentException("Unknown engine: " + engine);
+    }
+    int users = Integer.parseInt(opt.getOrDefault("users", "100000"));
+    int threads = Integer.parseInt(opt.getOrDefault("threads", "8"));
+    double rate = Double.parseDouble(opt.getOrDefault("rate", "0"));
+    long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(opt.getOrDefault("duration", "30")));
+    long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(opt.getOrDefault("warmup", "5")));
+    double[] mix = cumulative(opt.getOrDefault("mix", "80,10,7,3"));
+    
+    ConnectionFactory factory = () -> DriverManager.getConnection(url);
+    UserGenerator gen = new UserGenerator(0);
+    try (Connection c = factory.newConnection()) {
+      new UserDAO(c).createTable();
+    }
+    System.out.printf("Loading %d users into %s ...%n", users, url);
+    gen.insert(factory, 0, users, Runtime.getRuntime().availableProcessors());
+    
+    System.out.printf("Running: threads=%d rate=%s duration=%ds warmup=%ds mix=%s%n", 
+        threads, rate > 0 ? rate + " ops/s" : "closed loop", 
+        TimeUnit.NANOSECONDS.toSeconds(duration), TimeUnit.NANOSECONDS.toSeconds(warmup),
+        opt.getOrDefault("mix", "80,10,7,3"));
+    
+    AtomicInteger nextId = new AtomicInteger(users);
+    AtomicLong ticket = new AtomicLong();
+    long interval = rate > 0 ? (long) (1e+09 / rate) : 0;
+    long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    long measureStart = start + warmup;
+    long end = measureStart + duration;
+    
+    List<Samples[]> results = new ArrayList<>();
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Samples[] samples = new Samples[Op.values().length];
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = new Samples();
+      }
+      results.add(samples);
+      long seed = t;
+      Thread w = new Thread(() -> {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        try (Connection c = factory.newConnection()) {
+          UserDAO dao = new UserDAO(c);
+          // All workers start together, in both modes, so that 
+          // latencies are never measured from a time in the future.
+          parkUntil(start);
+          while (true) {
+            long intended;
+            if (interval > 0) {
+              intended = start + ticket.getAndIncrement() * interval;
+              parkUntil(intended);
+            } 
+            else {
+              intended = System.nanoTime();
+            }
+            if (intended >= end) {
+              break;
+            }
+            Op op = choose(mix, rnd.nextDouble());
+            boolean ok = execute(dao, op, rnd, gen, nextId);
+            long latency = System.nanoTime() - intended;
+            if (intended >= measureStart) {
+              Samples s = samples[op.ordinal()];
+              if (ok) {
+                s.add(latency);
+              } 
+              else {
+                s.errors++;
+              }
+            }
+          }
+        }
+        catch (SQLException e) {
+          e.printStackTrace();
+        }
+      });
+      workers.add(w);
+      w.start();
+    }
+    for (Thread w : workers) {
+      w.join();
+    }
+    
+    double seconds = duration / 1e+09;
+    System.out.printf("%-12s %10s %10s %9s %9s %9s %9s %9s %7s%n",
+        "operation", "count", "ops/s", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)", "errors");
+    Samples total = new Samples();
+    for (Op op : Op.values()) {
+      Samples all = new Samples();
+      for (Samples[] s : results) {
+        all.addAll(s[op.ordinal()]);
+      }
+      total.addAll(all);
+      report(op.toString(), all, seconds);
+    }
+    report("TOTAL", total, seconds);
+  }
+  
+  static void parkUntil(long deadline) {
+    long delay;
+    while ((delay = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(delay);
+    }
+  }
+  
+  static double[] cumulative(String mix) {
+    String[] parts = mix.split(",");
+    if (parts.length != Op.values().length) {
+      throw new IllegalArgumentException("Invalid mix: " + mix);
+    }
+    double[] c = new double[parts.length];
+    double sum = 0;
+    for (int i = 0; i < parts.length; i++) {
+      sum += Double.parseDouble(parts[i]);
+      c[i] = sum;
+    }
+    for (int i = 0; i < c.length; i++) {
+      c[i] /= sum;
+    }
+    return c;
+  }
+  
+  static Op choose(double[] mix, double r) {
+    for (Op op : Op.values()) {
+      if (r < mix[op.ordinal()]) {
+        return op;
+      }
+    }
+    return Op.values()[mix.length - 1];
+  }
+  
+  static boolean execute(UserDAO dao, Op op, SplittableRandom rnd, 
+                         UserGenerator gen, AtomicInteger nextId) {
+    try {
+      switch (op) {
+        case GET_USER:
+          dao.getUser(rnd.nextInt(nextId.get()));
+          break;
+        case GET_USERS:
+          dao.getUsers(Role.ADMIN);
+          break;
+        case UPDATE_USER: {
+          User u = gen.generate(rnd.nextInt(nextId.get()));
+          u.setPassword("pass" + rnd.nextInt(1000000));
+          dao.updateUser(u);
+          break;
+        }
+        case INSERT_USER:
+          dao.insertUser(gen.generate(nextId.getAndIncrement()));
+          break;
+      }
+      return true;
+    }
+    catch (SQLException e) {
+      return false;
+    }
+  }
+  
+  static void report(String what, Samples s, double seconds) {
+    long[] v = Arrays.copyOf(s.values, s.count);
+    Arrays.sort(v);
+    System.out.printf("%-12s %10d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %7d%n",
+        what, v.length, v.length / seconds, 
+        percentile(v, 50), percentile(v, 90), percentile(v, 99), percentile(v, 99.9),
+        v.length > 0 ? v[v.length - 1] / 1e+06 : 0, s.errors);
+  }
+  
+  static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+    return sorted[Math.max(0, i)] / 1e+06;
+  }
+}
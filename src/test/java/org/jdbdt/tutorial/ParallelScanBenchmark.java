@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016-2019 Eduardo R. B. Marques
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.jdbdt.tutorial;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+
+// Throughput benchmark: ParallelUserScan vs. UserDAO.getAllUsers(),
+// both building the complete list of users.
+// Not part of the test suite, run with:
+//   java ... org.jdbdt.tutorial.ParallelScanBenchmark [url [rows [parallelism]]]
+@SuppressWarnings("javadoc")
+public class ParallelScanBenchmark {
+
+  private static final String 
+    DEFAULT_DATABASE_URL = "jdbc:h2:mem:parallelScanBenchmark;DB_CLOSE_DELAY=-1";
+  
+  private static final int ROUNDS = 5;
+  
+  public static void main(String[] args) throws Exception {
+    String url = args.length > 0 ? args[0] : DEFAULT_DATABASE_URL;
+    int rows = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    int parallelism = args.length > 2 ? 
+        Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    
+    try (Connection c = DriverManager.getConnection(url)) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      ConnectionFactory factory = () -> DriverManager.getConnection(url);
+      new UserGenerator(0).insert(factory, 0, rows, parallelism);
+      
+      ParallelUserScan scan = new ParallelUserScan(factory, parallelism);
+      for (int r = 1; r <= ROUNDS; r++) {
+        long t = System.nanoTime();
+        int n = dao.getAllUsers().size();
+        report("getAllUsers()", r, n, System.nanoTime() - t);
+        
+        t = System.nanoTime();
+        n = scan.getAllUsers().size();
+        report("ParallelUserScan(" + parallelism + ")", r, n, System.nanoTime() - t);
+        
+        t = System.nanoTime();
+        List<User> list = new ArrayList<>();
+        scan.scanOrdered(list::add);
+        report("  scanOrdered()", r, list.size(), System.nanoTime() - t);
+      }
+      dao.dropTable();
+    }
+  }
+  
+  private static void report(String what, int round, int n, long elapsed) {
+    System.out.printf("%-28s round %d: %d rows in %.1f ms (%.0f rows/s)%n",
+        what, round, n, elapsed / 1e+06, n / (elapsed / 1e+09));
+  }
+}
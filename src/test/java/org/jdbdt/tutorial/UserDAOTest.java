@@ -25,9 +25,25 @@
 package org.jdbdt.tutorial;
 
 // Java/JDBC API imports
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.sql.Connection;
 import java.sql.Date;
+import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
 
 
 //JUnit imports
@@ -38,6 +54,10 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Test;
 
+// Reactive Streams imports
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
 
 // JDBDT imports
 import static org.jdbdt.JDBDT.*; 
@@ -57,6 +77,12 @@ public abstract class UserDAOTest {
   // JDBDT handle for the database 
   static DB theDB; 
   
+  // Factory for additional database connections
+  static ConnectionFactory theConnectionFactory;
+  
+  // Factory for connections to a scratch (in-memory) database
+  static ConnectionFactory theScratchConnectionFactory;
+  
   // DAO (the SUT)
   static UserDAO theDAO;
   
@@ -72,12 +98,14 @@ public abstract class UserDAOTest {
   
   // Global setup
   protected static 
-  void globalSetup(String jdbcDriverClass, String databaseURL) throws Throwable {
+  void globalSetup(String jdbcDriverClass, String databaseURL, String scratchDatabaseURL) throws Throwable {
     // Load JDBC driver class
     Class.forName(jdbcDriverClass);
     
     // Create database handle
     theDB = database(databaseURL);
+    theConnectionFactory = () -> DriverManager.getConnection(databaseURL);
+    theScratchConnectionFactory = () -> DriverManager.getConnection(scratchDatabaseURL);
     
     // Create DAO and in turn let it create USERS table 
     theDAO = new UserDAO(theDB.getConnection());
@@ -153,6 +181,14 @@ public abstract class UserDAOTest {
     return data(theTable, CONVERSION).row(u);
   }
   
+  // Commit and set a new save point. This releases the locks held by 
+  // the test connection, so that other connections may read the table 
+  // (needed for Derby).
+  static void releaseLocks() {
+    commit(theDB);
+    save(theDB);
+  }
+  
   static User anExistingUser() {
     return new User(0, "root", null, "pass0", Role.ADMIN, FIXED_DATE);
   }
@@ -205,7 +241,15 @@ public abstract class UserDAOTest {
     assertFalse("return value", deleted);
   }
   
-  @Test 
+  @Test
+  public void testDeleteUsers() throws SQLException {
+    User u = anExistingUser();
+    List<Integer> failed = theDAO.deleteUsers(Arrays.asList(u, nonExistingUser()));
+    assertDeleted("DB change", toDataSet(u));
+    assertEquals("return value", Arrays.asList(nonExistingUser().getId()), failed);
+  }
+
+  @Test
   public void testDeleteAll() throws SQLException {
     int count = theDAO.deleteAllUsers();
     assertEmpty("DB cleaned up", theTable);
@@ -277,5 +321,823 @@ public abstract class UserDAOTest {
     assertNull("User", result);
     assertUnchanged("No DB changes", theTable); 
   }
- 
+  
+  @Test
+  public void testStatementLog() throws SQLException {
+    StatementLog log = new StatementLog(2, 0, true);
+    theDAO.setStatementLog(log);
+    try {
+      theDAO.getUser(0);
+      theDAO.getUsers(Role.GUEST);
+      theDAO.getAllUsers();
+    } 
+    finally {
+      theDAO.setStatementLog(null);
+    }
+    List<StatementLog.Entry> entries = log.getEntries();
+    assertEquals("Log size", 2, entries.size());
+    StatementLog.Entry e = entries.get(0);
+    assertEquals("SQL id", "SQL_FOR_SELECT_BY_ROLE", e.getSQLId());
+    assertArrayEquals("Parameters", new Object[] { "GUEST" }, e.getParameters());
+    assertEquals("Rows", 2, e.getRows());
+    assertNotNull("Plan", e.getPlan());
+    assertEquals("SQL id", "SQL_FOR_SELECT_ALL", entries.get(1).getSQLId());
+    assertUnchanged("No DB changes", theTable); 
+  }
+
+  @Test
+  public void testStatementLogFailures() throws SQLException {
+    StatementLog log = new StatementLog(2, 0, false);
+    theDAO.setStatementLog(log);
+    User u = anExistingUser();
+    try {
+      u.setName("new name");
+      theDAO.updateUser(u);
+      theDAO.insertUser(u);
+      fail("Expected " + SQLException.class);
+    }
+    catch (SQLException e) {
+      List<StatementLog.Entry> entries = log.getEntries();
+      assertEquals("Log size", 2, entries.size());
+      StatementLog.Entry update = entries.get(0);
+      assertEquals("Update SQL id", "SQL_FOR_UPDATE", update.getSQLId());
+      assertEquals("Update password", "***", update.getParameters()[2]);
+      assertNull("Update error", update.getError());
+      StatementLog.Entry insert = entries.get(1);
+      assertEquals("Insert SQL id", "SQL_FOR_INSERT", insert.getSQLId());
+      assertEquals("Insert password", "***", insert.getParameters()[3]);
+      assertSame("Insert error", e, insert.getError());
+      assertEquals("Insert rows", -1, insert.getRows());
+    }
+    finally {
+      theDAO.setStatementLog(null);
+    }
+    assertDelta("DB change", toDataSet(anExistingUser()), toDataSet(u));
+  }
+
+  @Test
+  public void testStatementLogPlanFailure() throws SQLException {
+    StatementLog log = new StatementLog(2, 0, true);
+    Connection c = theScratchConnectionFactory.newConnection();
+    c.close();
+    // Plan capture fails on the closed connection.
+    log.record(c, "SQL_FOR_DELETE", "DELETE FROM USERS WHERE ID=?", new Object[] { 0 }, 1, 1, null);
+    List<StatementLog.Entry> entries = log.getEntries();
+    assertEquals("Log size", 1, entries.size());
+    assertNull("Plan", entries.get(0).getPlan());
+    assertEquals("Rows", 1, entries.get(0).getRows());
+  }
+
+  @Test
+  public void testParallelScan() throws SQLException {
+    releaseLocks();
+    List<User> list = new ParallelUserScan(theConnectionFactory, 2)
+                      .partitions(4)
+                      .getAllUsers();
+    DataSet actual = data(theTable, CONVERSION).rows(list);
+    assertEquals("User list", theInitialData, actual);
+    assertUnchanged("No DB changes", theTable); 
+  }
+  
+  @Test
+  public void testParallelScanWithSampling() throws SQLException {
+    releaseLocks();
+    List<User> list = Collections.synchronizedList(new ArrayList<>());
+    new ParallelUserScan(theConnectionFactory, 3)
+        .sampled(true)
+        .scan(list::add);
+    list.sort(Comparator.comparingInt(User::getId));
+    DataSet actual = data(theTable, CONVERSION).rows(list);
+    assertEquals("User list", theInitialData, actual);
+    assertUnchanged("No DB changes", theTable); 
+  }
+  
+  @Test
+  public void testParallelScanOrdered() throws SQLException {
+    releaseLocks();
+    List<User> list = new ArrayList<>();
+    new ParallelUserScan(theConnectionFactory, 2)
+        .partitions(3)
+        .fetchSize(1)
+        .scanOrdered(list::add);
+    DataSet actual = data(theTable, CONVERSION).rows(list);
+    assertEquals("User list", theInitialData, actual);
+    for (int i = 1; i < list.size(); i++) {
+      assertTrue("ID order", list.get(i - 1).getId() < list.get(i).getId());
+    }
+    assertUnchanged("No DB changes", theTable); 
+  }
+  
+  @Test
+  public void testParallelScanSampledBoundaries() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      // Skewed IDs: 90 dense users followed by 10 sparse ones.
+      List<User> users = new ArrayList<>();
+      UserGenerator gen = new UserGenerator(0);
+      for (int i = 0; i < 100; i++) {
+        users.add(gen.generate(i < 90 ? i : 1000 * i));
+      }
+      dao.insertUsers(users);
+      int[] b = new ParallelUserScan(theScratchConnectionFactory, 2)
+          .sampled(true)
+          .boundaries();
+      assertEquals("Partitions", 4, b.length);
+      assertEquals("Lower bound", 0, b[0]);
+      assertEquals("Upper bound", 99000, b[3]);
+      assertEquals("Contiguous", b[1] + 1, b[2]);
+      assertTrue("Balanced", b[2] >= 40 && b[2] <= 60);
+      dao.dropTable();
+    }
+  }
+  
+  // Subscriber that requests one user at a time, 
+  // and cancels the subscription after a given number of users
+  static class TestSubscriber implements Subscriber<User> {
+    final List<User> received = new ArrayList<>();
+    final int limit;
+    Subscription subscription;
+    Throwable error;
+    boolean completed;
+    
+    TestSubscriber(int limit) {
+      this.limit = limit;
+    }
+    @Override
+    public void onSubscribe(Subscription s) {
+      subscription = s;
+      s.request(1);
+    }
+    @Override
+    public void onNext(User u) {
+      received.add(u);
+      if (received.size() == limit) {
+        subscription.cancel();
+      } else {
+        subscription.request(1);
+      }
+    }
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+    }
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+  
+  @Test
+  public void testPublisher() {
+    releaseLocks();
+    TestSubscriber s = new TestSubscriber(Integer.MAX_VALUE);
+    UserPublisher.allUsers(theConnectionFactory).subscribe(s);
+    DataSet actual = data(theTable, CONVERSION).rows(s.received);
+    assertEquals("User list", theInitialData, actual);
+    assertTrue("Completed", s.completed);
+    assertNull("Error", s.error);
+    assertUnchanged("No DB changes", theTable); 
+  }
+  
+  @Test
+  public void testPublisherCancel() {
+    releaseLocks();
+    TestSubscriber s = new TestSubscriber(1);
+    UserPublisher.usersWithRole(theConnectionFactory, Role.GUEST).subscribe(s);
+    DataSet actual = data(theTable, CONVERSION).rows(s.received);
+    assertEquals("User list", DataSet.first(DataSet.last(theInitialData, 2), 1), actual);
+    assertFalse("Completed", s.completed);
+    assertNull("Error", s.error);
+    s.subscription.request(1);
+    assertEquals("No more users", 1, s.received.size());
+  }
+  
+  @Test
+  public void testPublisherInvalidRequest() {
+    TestSubscriber s = new TestSubscriber(Integer.MAX_VALUE) {
+      @Override
+      public void onSubscribe(Subscription s) {
+        subscription = s;
+        s.request(0);
+      }
+    };
+    UserPublisher.allUsers(theConnectionFactory).subscribe(s);
+    assertTrue("Error", s.error instanceof IllegalArgumentException);
+    assertTrue("No users", s.received.isEmpty());
+  }
+
+  @Test
+  public void testPublisherFailingSubscriber() throws SQLException {
+    releaseLocks();
+    List<Connection> connections = new ArrayList<>();
+    ConnectionFactory factory = () -> {
+      Connection c = theConnectionFactory.newConnection();
+      connections.add(c);
+      return c;
+    };
+    RuntimeException failure = new IllegalStateException("Subscriber failure");
+    TestSubscriber s = new TestSubscriber(Integer.MAX_VALUE) {
+      @Override
+      public void onNext(User u) {
+        if (received.size() == 1) {
+          throw failure;
+        }
+        super.onNext(u);
+      }
+    };
+    UserPublisher.allUsers(factory).subscribe(s);
+    assertSame("Error", failure, s.error);
+    assertEquals("Users", 1, s.received.size());
+    assertTrue("Connection closed", connections.get(0).isClosed());
+    s.subscription.request(1);
+    assertEquals("No more users", 1, s.received.size());
+  }
+
+  @Test
+  public void testPublisherVersioned() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      dao.addVersionColumn();
+      dao.insertUsers(initialUsers());
+      User u = dao.getUser(4);
+      u.setName("new name");
+      assertTrue("Update", dao.updateUser(u));
+      TestSubscriber s = new TestSubscriber(Integer.MAX_VALUE);
+      UserPublisher.usersWithRole(theScratchConnectionFactory, Role.GUEST).subscribe(s);
+      assertEquals("Published guests", dao.getUsers(Role.GUEST), s.received);
+      assertEquals("Version", 1, s.received.get(0).getVersion());
+      dao.dropTable();
+    }
+  }
+  
+  static List<User> initialUsers() throws SQLException {
+    List<User> list = theDAO.getAllUsers();
+    list.sort(Comparator.comparingInt(User::getId));
+    return list;
+  }
+  
+  @Test
+  public void testFingerprint() throws SQLException {
+    List<User> expected = initialUsers();
+    Collections.reverse(expected);
+    assertEquals("Fingerprint", Fingerprint.of(expected), theDAO.fingerprint());
+    assertEquals("Range fingerprint", 
+        Fingerprint.of(expected.subList(1, 4)), theDAO.fingerprint(2, 4));
+    assertUnchanged("No DB changes", theTable); 
+  }
+  
+  @Test
+  public void testFingerprintMismatches() throws SQLException {
+    List<User> expected = initialUsers();
+    User u = anExistingUser();
+    u.setPassword("new pass");
+    theDAO.updateUser(u);
+    theDAO.deleteUser(expected.get(4));
+    assertNotEquals("Fingerprint", Fingerprint.of(expected), theDAO.fingerprint());
+    List<int[]> ranges = 
+        Fingerprint.mismatches(theDAO::fingerprint, Fingerprint.source(expected), 0, 7, 1);
+    assertEquals("Mismatches", 2, ranges.size());
+    assertArrayEquals("First mismatch", new int[] { 0, 0 }, ranges.get(0));
+    assertArrayEquals("Second mismatch", new int[] { 4, 4 }, ranges.get(1));
+  }
+  
+  // Changes used for diff tests: update, deletion, and insertion
+  static void applyChanges(List<User> users) throws SQLException {
+    User u = anExistingUser();
+    u.setName("new name");
+    u.setPassword("new pass");
+    theDAO.updateUser(u);
+    theDAO.deleteUser(users.get(3));
+    theDAO.insertUser(nonExistingUser());
+  }
+  
+  @Test
+  public void testDiff() throws SQLException {
+    List<User> before = initialUsers();
+    applyChanges(before);
+    List<UserChange> changes = new ArrayList<>();
+    UserDiff.diff(before, initialUsers(), changes::add);
+    assertEquals("Changes", 3, changes.size());
+    assertEquals("Update", UserChange.Type.UPDATE, changes.get(0).getType());
+    assertEquals("Update columns", 
+        EnumSet.of(UserChange.Column.NAME, UserChange.Column.PASSWORD), 
+        changes.get(0).getChangedColumns());
+    assertEquals("Delete", UserChange.Type.DELETE, changes.get(1).getType());
+    assertEquals("Delete id", 3, changes.get(1).getId());
+    assertEquals("Insert", UserChange.Type.INSERT, changes.get(2).getType());
+    assertEquals("Insert data", nonExistingUser(), changes.get(2).getAfter());
+  }
+  
+  @Test
+  public void testDiffDeltaReplay() throws SQLException, IOException {
+    Path file = Files.createTempFile("users", ".delta");
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO other = new UserDAO(c);
+      other.createTable();
+      List<User> before = initialUsers();
+      other.insertUsers(before);
+      applyChanges(before);
+      int n = UserDiff.writeDelta(c, theDB.getConnection(), file);
+      assertEquals("Changes", 3, n);
+      assertEquals("Replay failures", Collections.emptyList(), UserDiff.replay(file, other));
+      assertEquals("Fingerprint", theDAO.fingerprint(), other.fingerprint());
+      // Replay again on a copy of the original table: 
+      // the deletion fails if the user was already deleted.
+      other.deleteAllUsers();
+      other.insertUsers(before);
+      other.deleteUser(before.get(3));
+      assertEquals("Replay failures", Arrays.asList(3), UserDiff.replay(file, other));
+      assertEquals("Fingerprint after second replay", theDAO.fingerprint(), other.fingerprint());
+      other.dropTable();
+    }
+    finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testDiffDeltaReplayVersioned() throws SQLException, IOException {
+    Path file = Files.createTempFile("users", ".delta");
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO other = new UserDAO(c);
+      other.createTable();
+      other.addVersionColumn();
+      List<User> before = initialUsers();
+      other.insertUsers(before);
+      // Version 1 for the user that is updated by the delta.
+      assertTrue("Update", other.updateUser(other.getUser(0)));
+      applyChanges(before);
+      UserDiff.writeDelta(c, theDB.getConnection(), file);
+      assertTrue("Versions", UserDiff.hasVersions(file));
+      assertEquals("Replay failures", Collections.emptyList(), UserDiff.replay(file, other));
+      assertEquals("Fingerprint", theDAO.fingerprint(), other.fingerprint());
+      assertEquals("Version", 2, other.getUser(0).getVersion());
+      // Replay again: the update fails, since the version changed.
+      other.deleteAllUsers();
+      other.insertUsers(before);
+      assertEquals("Replay failures", Arrays.asList(0), UserDiff.replay(file, other));
+      other.dropTable();
+    }
+    finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  public void testUpdateUsers() throws SQLException {
+    User u = anExistingUser();
+    u.setPassword("new pass");
+    u.setName("new name");
+    List<Integer> failed = theDAO.updateUsers(Arrays.asList(u, nonExistingUser()));
+    assertDelta("DB change", toDataSet(anExistingUser()), toDataSet(u));
+    assertEquals("return value", Arrays.asList(nonExistingUser().getId()), failed);
+  }
+  
+  @Test
+  public void testPartialUpdateUsers() throws SQLException {
+    User u = anExistingUser();
+    u.setPassword("new pass");
+    u.setName("new name");
+    StatementLog log = new StatementLog(1, 0, false);
+    theDAO.setStatementLog(log);
+    List<Integer> failed;
+    try {
+      failed = theDAO.updateUsers(Arrays.asList(u), EnumSet.of(UserChange.Column.NAME));
+    }
+    finally {
+      theDAO.setStatementLog(null);
+    }
+    User expected = anExistingUser();
+    expected.setName("new name");
+    assertDelta("DB change", toDataSet(anExistingUser()), toDataSet(expected));
+    assertTrue("return value", failed.isEmpty());
+    StatementLog.Entry e = log.getEntries().get(0);
+    assertEquals("SQL id", "SQL_FOR_UPDATE", e.getSQLId());
+    assertArrayEquals("Parameters", new Object[] { "new name", 0 }, e.getParameters());
+  }
+  
+  @Test
+  public void testVersionedUpdates() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      dao.addVersionColumn();
+      assertTrue("Versioned", dao.isVersioned());
+      assertTrue("Versioned (new DAO)", new UserDAO(c).isVersioned());
+      dao.insertUser(anExistingUser());
+      User u1 = dao.getUser(0);
+      User u2 = dao.getUser(0);
+      u1.setName("name 1");
+      u2.setName("name 2");
+      StatementLog log = new StatementLog(2, 0, false);
+      dao.setStatementLog(log);
+      assertEquals("First update", Collections.emptyList(), dao.updateUsers(Arrays.asList(u1)));
+      assertEquals("First update version", 1, u1.getVersion());
+      assertFalse("Second update", dao.updateUser(u2));
+      dao.setStatementLog(null);
+      StatementLog.Entry e = log.getEntries().get(0);
+      assertEquals("SQL id", "SQL_FOR_UPDATE_VERSIONED", e.getSQLId());
+      assertEquals("Password parameter", "***", e.getParameters()[2]);
+      assertEquals("Version parameter", 0, e.getParameters()[6]);
+      assertEquals("Rows for second update", 0, log.getEntries().get(1).getRows());
+      User actual = dao.getUser(0);
+      assertEquals("User", u1, actual);
+      assertEquals("Version", 1, actual.getVersion());
+      assertEquals("Version by login", 1, dao.getUser(u1.getLogin()).getVersion());
+      assertEquals("Version in list", 1, dao.getAllUsers().get(0).getVersion());
+      dao.dropTable();
+    }
+  }
+  
+  @Test
+  public void testRoleIndex() throws SQLException {
+    RoleIndex index = theDAO.enableRoleIndex();
+    try {
+      assertEquals("Admins", 1, index.count(Role.ADMIN));
+      assertEquals("Regular users", 3, index.count(Role.REGULAR));
+      assertArrayEquals("Guests", new int[] { 4, 5 }, index.getIds(Role.GUEST));
+      theDAO.insertUser(nonExistingUser());
+      User u = anExistingUser();
+      u.setRole(Role.GUEST);
+      theDAO.updateUser(u);
+      theDAO.deleteUser(theDAO.getUser(4));
+      assertEquals("Admins after changes", 0, index.count(Role.ADMIN));
+      assertEquals("Regular users after changes", 4, index.count(Role.REGULAR));
+      assertArrayEquals("Guests after changes", new int[] { 0, 5 }, index.getIds(Role.GUEST));
+      assertEquals("Role of user", Role.REGULAR, index.roleOf(nonExistingUser().getId()));
+    } 
+    finally {
+      theDAO.disableRoleIndex();
+    }
+    for (Role r : Role.values()) {
+      assertEquals("Count for " + r, theDAO.getUsers(r).size(), theDAO.countUsers(r));
+    }
+  }
+  
+  @Test
+  public void testRoleIndexBatches() throws SQLException {
+    RoleIndex index = theDAO.enableRoleIndex();
+    try {
+      List<User> users = initialUsers();
+      users.get(0).setRole(Role.GUEST);
+      users.get(1).setRole(Role.GUEST);
+      users.get(2).setRole(Role.ADMIN);
+      User u = users.get(1);
+      User again = new User(u.getId(), u.getLogin(), u.getName(), u.getPassword(), 
+                            Role.ADMIN, u.getCreated());
+      List<User> updates = new ArrayList<>(users.subList(0, 4));
+      updates.add(again);
+      assertEquals("Update failures", Collections.emptyList(), theDAO.updateUsers(updates));
+      assertEquals("Delete failures", 
+          Arrays.asList(nonExistingUser().getId()),
+          theDAO.deleteUsers(Arrays.asList(users.get(4), nonExistingUser())));
+      assertArrayEquals("Admins", new int[] { 1, 2 }, index.getIds(Role.ADMIN));
+      assertArrayEquals("Regular users", new int[] { 3 }, index.getIds(Role.REGULAR));
+      assertArrayEquals("Guests", new int[] { 0, 5 }, index.getIds(Role.GUEST));
+      assertNull("Role of deleted user", index.roleOf(4));
+    } 
+    finally {
+      theDAO.disableRoleIndex();
+    }
+  }
+
+  @Test
+  public void testGetUsersWithRoleIndex() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      UserGenerator gen = new UserGenerator(0);
+      List<User> users = new ArrayList<>();
+      for (int id = 0; id < 100; id++) {
+        users.add(gen.generate(id));
+      }
+      dao.insertUsers(users);
+      Map<Role, List<User>> expected = new HashMap<>();
+      for (Role r : Role.values()) {
+        List<User> list = dao.getUsers(r);
+        list.sort(Comparator.comparingInt(User::getId));
+        expected.put(r, list);
+      }
+      dao.enableRoleIndex();
+      StatementLog log = new StatementLog(100, 0, false);
+      dao.setStatementLog(log);
+      for (Role r : Role.values()) {
+        assertEquals("Users for " + r, expected.get(r), dao.getUsers(r));
+      }
+      for (StatementLog.Entry e : log.getEntries()) {
+        assertEquals("SQL id", "SQL_FOR_SELECT_BY_IDS", e.getSQLId());
+      }
+      dao.dropTable();
+    }
+  }
+  
+  @Test
+  public void testUserCache() throws SQLException, IOException {
+    Path file = Files.createTempFile("users", ".cache");
+    try {
+      try (UserCache cache = UserCache.open(file, 16)) {
+        assertFalse("Validation of new cache", cache.validate(theDAO.fingerprint()));
+        theDAO.setUserCache(cache);
+        User u = theDAO.getUser(0);
+        assertEquals("Cache size", 1, cache.size());
+        assertEquals("Cached user", u, cache.get(u.getLogin()));
+        cache.checkpoint(theDAO.fingerprint());
+      } 
+      finally {
+        theDAO.setUserCache(null);
+      }
+      // Simulate restart
+      try (UserCache cache = UserCache.open(file, 16)) {
+        assertTrue("Validation", cache.validate(theDAO.fingerprint()));
+        assertEquals("Cached user", anExistingUser(), cache.get(0));
+        theDAO.setUserCache(cache);
+        User u = anExistingUser();
+        u.setLogin("admin");
+        theDAO.updateUser(u);
+        assertEquals("Updated user", u, theDAO.getUser("admin"));
+        assertNull("Old login", cache.get("root"));
+        User guest = theDAO.getUser(5);
+        assertEquals("Cached guest", guest, cache.get(guest.getLogin()));
+        theDAO.deleteUser(guest);
+        assertNull("Deleted user", cache.get(5));
+        cache.checkpoint(theDAO.getMaxId());
+      } 
+      finally {
+        theDAO.setUserCache(null);
+      }
+      try (UserCache cache = UserCache.open(file, 16)) {
+        assertFalse("Validation with fingerprint", cache.validate(theDAO.fingerprint()));
+        assertEquals("Cache size", 0, cache.size());
+      }
+    }
+    finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  public void testUserCacheFile() throws IOException {
+    Path file = Files.createTempFile("users", ".cache");
+    try {
+      try (UserCache cache = UserCache.open(file, 16)) {
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+          assertEquals("Permissions", PosixFilePermissions.fromString("rw-------"), 
+                       Files.getPosixFilePermissions(file));
+        }
+        try (UserCache other = UserCache.open(file, 16)) {
+          fail("Expected " + IOException.class);
+        }
+        catch (IOException e) {
+          // Cache file in use.
+        }
+      }
+      // Lock released on close.
+      UserCache.open(file, 16).close();
+    }
+    finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  public void testUserCacheChurn() throws IOException {
+    Path file = Files.createTempFile("users", ".cache");
+    try (UserCache cache = UserCache.open(file, 16)) {
+      UserGenerator gen = new UserGenerator(1234);
+      Map<Integer, User> expected = new HashMap<>();
+      SplittableRandom rng = new SplittableRandom(1234);
+      for (int i = 0; i < 10000; i++) {
+        int id = rng.nextInt(24);
+        if (rng.nextBoolean()) {
+          User u = gen.generate(id);
+          if (expected.containsKey(id) || expected.size() < 12) {
+            assertTrue("Put", cache.put(u));
+            expected.put(id, u);
+          }
+        }
+        else {
+          assertEquals("Remove", expected.remove(id) != null, cache.remove(id));
+        }
+      }
+      assertEquals("Cache size", expected.size(), cache.size());
+      for (int id = 0; id < 24; id++) {
+        User u = expected.get(id);
+        assertEquals("User " + id, u, cache.get(id));
+        if (u != null) {
+          assertEquals("User " + u.getLogin(), u, cache.get(u.getLogin()));
+        }
+      }
+    }
+    finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  public void testUserGenerator() throws SQLException {
+    UserGenerator gen = new UserGenerator(1234).roles(1, 1, 1);
+    List<User> list = gen.stream(1000, 3000).parallel().collect(Collectors.toList());
+    assertEquals("Determinism", list, new UserGenerator(1234).roles(1, 1, 1)
+                                          .stream(1000, 3000).collect(Collectors.toList()));
+    for (User u : list) {
+      assertTrue("Login", u.getLogin().length() <= 16);
+      assertTrue("Name", u.getName() == null || u.getName().length() <= 32);
+      assertTrue("Password", u.getPassword().length() <= 32);
+    }
+    RoleIndex index = theDAO.enableRoleIndex();
+    try {
+      theDAO.insertUsers(list);
+    }
+    finally {
+      theDAO.disableRoleIndex();
+    }
+    DataSet expected = DataSet.join(theInitialData, data(theTable, CONVERSION).rows(list));
+    assertState("DB state", expected);
+    for (Role r : Role.values()) {
+      long n = list.stream().filter(u -> u.getRole() == r).count();
+      assertTrue("Distribution for " + r, n > 800 && n < 1200);
+      assertEquals("Indexed " + r, theDAO.countUsers(r), index.count(r));
+    }
+  }
+  
+  @Test
+  public void testParallelUserGeneration() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      UserGenerator gen = new UserGenerator(1234);
+      gen.insert(theScratchConnectionFactory, 0, 5000, 4);
+      assertEquals("Fingerprint", Fingerprint.of(gen.stream(0, 5000)::iterator), dao.fingerprint());
+      dao.dropTable();
+    }
+  }
+  
+  @Test
+  public void testUserGeneratorCSV() throws IOException {
+    Path file = Files.createTempFile("users", ".csv");
+    try {
+      UserGenerator gen = new UserGenerator(1234).noNames(0).logins("u,\"%d");
+      gen.write(file, 0, 2);
+      List<String> lines = Files.readAllLines(file);
+      assertEquals("Lines", 3, lines.size());
+      User u = gen.generate(1);
+      assertEquals("Row", 
+                   "1,\"u,\"\"1\"," + u.getName() + "," + u.getPassword() + "," 
+                   + u.getRole() + "," + u.getCreated(), 
+                   lines.get(2));
+    }
+    finally {
+      Files.delete(file);
+    }
+  }
+  
+  @Test
+  public void testParallelUserGenerationInvalidParallelism() throws SQLException {
+    try {
+      new UserGenerator(1234).insert(theScratchConnectionFactory, 0, 10, 0);
+      fail("Expected " + IllegalArgumentException.class);
+    }
+    catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+  
+  @Test
+  public void testCompactRoles() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable(true);
+      assertTrue("Compact roles", dao.hasCompactRoles());
+      List<User> users = initialUsers();
+      for (User u : users) {
+        dao.insertUser(u);
+      }
+      assertEquals("Fingerprint", Fingerprint.of(users), dao.fingerprint());
+      assertEquals("User", anExistingUser(), dao.getUser(0));
+      User u = anExistingUser();
+      u.setRole(Role.GUEST);
+      assertTrue("Update", dao.updateUser(u));
+      assertEquals("Guests", 3, dao.getUsers(Role.GUEST).size());
+      assertEquals("Guest count", 3, dao.countUsers(Role.GUEST));
+      assertEquals("Indexed guests", 3, dao.enableRoleIndex().count(Role.GUEST));
+      TestSubscriber s = new TestSubscriber(Integer.MAX_VALUE);
+      UserPublisher.usersWithRole(theScratchConnectionFactory, Role.GUEST).subscribe(s);
+      assertEquals("Published guests", 3, s.received.size());
+      dao.dropTable();
+    }
+  }
+  
+  @Test
+  public void testMigrationToCompactRoles() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      List<User> users = initialUsers();
+      dao.insertUsers(users);
+      assertFalse("Compact roles before migration", dao.hasCompactRoles());
+      dao.migrateToCompactRoles(4);
+      assertTrue("Compact roles", dao.hasCompactRoles());
+      assertTrue("Compact roles (new DAO)", new UserDAO(c).hasCompactRoles());
+      assertEquals("Fingerprint", Fingerprint.of(users), dao.fingerprint());
+      dao.insertUser(nonExistingUser());
+      assertEquals("Inserted user", nonExistingUser(), dao.getUser(nonExistingUser().getId()));
+      dao.dropTable();
+    }
+  }
+  
+  @Test
+  public void testMigrationToCompactRolesRerun() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      List<User> users = initialUsers();
+      dao.insertUsers(users);
+      // Partial failure while filling in role codes.
+      try (Statement stmt = c.createStatement()) {
+        stmt.execute("ALTER TABLE USERS ADD COLUMN ROLE_CODE SMALLINT");
+        stmt.execute("UPDATE USERS SET ROLE_CODE = 2 WHERE ID < 2");
+      }
+      dao.migrateToCompactRoles(4);
+      assertTrue("Compact roles", new UserDAO(c).hasCompactRoles());
+      assertEquals("Fingerprint", Fingerprint.of(users), dao.fingerprint());
+      dao.dropTable();
+    }
+  }
+  
+  @Test
+  public void testMigrationToCompactRolesResume() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      List<User> users = initialUsers();
+      dao.insertUsers(users);
+      // Partial failure after dropping the old role column.
+      try (Statement stmt = c.createStatement()) {
+        stmt.execute("ALTER TABLE USERS ADD COLUMN ROLE_CODE SMALLINT");
+        stmt.execute("UPDATE USERS SET ROLE_CODE = "
+            + "CASE ROLE WHEN 'ADMIN' THEN 0 WHEN 'REGULAR' THEN 1 ELSE 2 END");
+        stmt.execute("ALTER TABLE USERS DROP COLUMN ROLE");
+      }
+      dao = new UserDAO(c);
+      dao.migrateToCompactRoles(4);
+      assertTrue("Compact roles", new UserDAO(c).hasCompactRoles());
+      assertEquals("Fingerprint", Fingerprint.of(users), dao.fingerprint());
+      dao.dropTable();
+    }
+  }
+  
+  @Test
+  public void testMigrationToCompactRolesResumeCheck() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.createTable();
+      List<User> users = initialUsers();
+      dao.insertUsers(users);
+      dao.migrateToCompactRoles(4);
+      // Partial failure after the rename, before adding the check.
+      try (Statement stmt = c.createStatement()) {
+        stmt.execute("ALTER TABLE USERS DROP CONSTRAINT USERS_ROLE_CHECK");
+      }
+      dao = new UserDAO(c);
+      dao.migrateToCompactRoles(4);
+      try (Statement stmt = c.createStatement()) {
+        stmt.executeUpdate("UPDATE USERS SET ROLE = 3 WHERE ID = 0");
+        fail("Expected " + SQLException.class);
+      }
+      catch (SQLException e) {
+        assertEquals("Fingerprint", Fingerprint.of(users), dao.fingerprint());
+      }
+      // Nothing to do the second time.
+      dao.migrateToCompactRoles(4);
+      dao.dropTable();
+    }
+  }
+  
+  @Test
+  public void testMigrationToCompactRolesUnknownRole() throws SQLException, IOException {
+    try (Connection c = theScratchConnectionFactory.newConnection()) {
+      UserDAO dao = new UserDAO(c);
+      dao.dropTable();
+      try (Statement stmt = c.createStatement()) {
+        stmt.execute("CREATE TABLE USERS (ID INTEGER PRIMARY KEY NOT NULL, "
+            + "LOGIN VARCHAR(16) UNIQUE NOT NULL, NAME VARCHAR(32), PASSWORD VARCHAR(32) NOT NULL, "
+            + "ROLE VARCHAR(7) NOT NULL, CREATED DATE NOT NULL)");
+      }
+      dao.insertUsers(initialUsers());
+      try (Statement stmt = c.createStatement()) {
+        stmt.executeUpdate("UPDATE USERS SET ROLE = 'ROOT' WHERE ID = 0");
+      }
+      try {
+        dao.migrateToCompactRoles(4);
+        fail("Expected " + SQLException.class);
+      }
+      catch (SQLException e) {
+        assertEquals("Error", "Role codes missing for 1 users", e.getMessage());
+        assertFalse("Compact roles", new UserDAO(c).hasCompactRoles());
+      }
+      dao.dropTable();
+    }
+  }
 }